@@ -0,0 +1,100 @@
+package com.furnaghan.exif;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// A point after which a read or update gives up, checked between segments, IFDs and tags. It can
+// also be cancelled from another thread, which closes anything registered with it so a read
+// blocked on a stalled stream is woken rather than left holding the thread.
+public class Deadline {
+
+	private static final Logger LOG = LoggerFactory.getLogger( Deadline.class );
+
+	// Never expires and can't be cancelled, even interrupting the thread doesn't stop the work
+	public static final Deadline NONE = new Deadline( false, 0 );
+
+	public static Deadline after( final long duration, final TimeUnit unit ) {
+		return new Deadline( true, System.nanoTime() + unit.toNanos( duration ) );
+	}
+
+	// No time limit, but may be cancelled
+	public static Deadline cancellable() {
+		return new Deadline( false, 0 );
+	}
+
+	private final boolean timed;
+	private final long expiry;
+	private final Set<Closeable> resources;
+	private volatile boolean cancelled;
+
+	private Deadline( final boolean timed, final long expiry ) {
+		this.timed = timed;
+		this.expiry = expiry;
+		this.resources = new LinkedHashSet<>();
+		this.cancelled = false;
+	}
+
+	public void cancel() {
+		checkState( this != NONE, "Deadline.NONE can't be cancelled" );
+		cancelled = true;
+
+		final Closeable[] closeables;
+		synchronized ( resources ) {
+			closeables = resources.toArray( new Closeable[resources.size()] );
+			resources.clear();
+		}
+		for ( final Closeable closeable : closeables ) {
+			try {
+				closeable.close();
+			} catch ( final IOException e ) {
+				LOG.debug( "Unable to close {} on cancel", closeable, e );
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	// Any deadline other than NONE also expires once the thread is interrupted
+	public boolean isExpired() {
+		return this != NONE && ( cancelled || ( timed && System.nanoTime() - expiry >= 0 )
+				|| Thread.currentThread().isInterrupted() );
+	}
+
+	public void check() throws InterruptedIOException {
+		if ( isExpired() ) {
+			throw new InterruptedIOException( cancelled ? "Cancelled" : timed
+					&& System.nanoTime() - expiry >= 0 ? "Deadline expired" : "Interrupted" );
+		}
+	}
+
+	// Closed if the deadline is cancelled while it is registered
+	public void register( final Closeable closeable ) throws IOException {
+		if ( this == NONE ) {
+			return;
+		}
+		synchronized ( resources ) {
+			if ( !cancelled ) {
+				resources.add( closeable );
+				return;
+			}
+		}
+		closeable.close();
+	}
+
+	public void unregister( final Closeable closeable ) {
+		synchronized ( resources ) {
+			resources.remove( closeable );
+		}
+	}
+}
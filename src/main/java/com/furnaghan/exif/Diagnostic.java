@@ -0,0 +1,82 @@
+package com.furnaghan.exif;
+
+// A problem found in the data when reading leniently, recorded instead of throwing so reading
+// malformed files costs no more than reading valid ones.
+public class Diagnostic {
+
+	public enum Code {
+		UNSUPPORTED_FORMAT( "Unsupported image format" ),
+		INVALID_SEGMENT( "Invalid JPEG segment" ),
+		TRUNCATED( "Data ends part way through the image" ),
+		INVALID_HEADER( "Invalid Exif header" ),
+		INVALID_BYTE_ORDER( "Invalid byte order" ),
+		INVALID_TIFF_MARKER( "Invalid TIFF marker" ),
+		INVALID_DIRECTORY_OFFSET( "IFD outside of the data" ),
+		DIRECTORY_CYCLE( "IFD already read" ),
+		UNKNOWN_FIELD_TYPE( "Unknown field type" ),
+		INVALID_VALUE_OFFSET( "Value outside of the data" ),
+		INVALID_VALUE( "Invalid value" ),
+		THUMBNAIL_MISMATCH( "JPEGInterchangeFormat and JPEGInterchangeFormatLength differ" ),
+		INVALID_THUMBNAIL( "Thumbnail outside of the data" ),
+		BUDGET_EXCEEDED( "Parse budget exceeded" ),
+		;
+
+		private final String description;
+
+		Code( final String description ) {
+			this.description = description;
+		}
+
+		public String getDescription() {
+			return description;
+		}
+	}
+
+	private final Code code;
+	private final ImageFileDirectory ifd;
+	private final int tag;
+	private final long offset;
+
+	public Diagnostic( final Code code, final ImageFileDirectory ifd, final int tag,
+			final long offset ) {
+		this.code = code;
+		this.ifd = ifd;
+		this.tag = tag;
+		this.offset = offset;
+	}
+
+	public Code getCode() {
+		return code;
+	}
+
+	// The IFD the problem was found in, or null if it wasn't in any IFD
+	public ImageFileDirectory getIfd() {
+		return ifd;
+	}
+
+	// The id of the tag, or -1 if the problem isn't with a single tag
+	public int getTag() {
+		return tag;
+	}
+
+	// The offset from the start of the TIFF data, or of the image for problems with its segments,
+	// or -1 if it isn't known
+	public long getOffset() {
+		return offset;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder builder = new StringBuilder( code.description );
+		if ( ifd != null ) {
+			builder.append( " in IFD=" ).append( ifd );
+		}
+		if ( tag >= 0 ) {
+			builder.append( " tag=0x" ).append( Integer.toHexString( tag ) );
+		}
+		if ( offset >= 0 ) {
+			builder.append( " at offset=" ).append( offset );
+		}
+		return builder.toString();
+	}
+}
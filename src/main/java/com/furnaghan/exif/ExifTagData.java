@@ -1,31 +1,31 @@
 package com.furnaghan.exif;
 
-import java.io.ByteArrayInputStream;
+import static com.google.common.base.Preconditions.checkState;
+
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Collection;
 
-import com.furnaghan.exif.io.DataConversions;
+import com.furnaghan.exif.io.BufferReader;
 import com.furnaghan.exif.io.FieldType;
-import com.furnaghan.exif.io.StreamReader;
 import com.google.common.base.Supplier;
 
 public class ExifTagData implements Supplier<ExifTagReference> {
 
-	public static ExifTagData read( final ImageFileDirectory ifd, final StreamReader data )
-			throws IOException {
+	public static ExifTagData read( final ImageFileDirectory ifd, final BufferReader data ) {
 		return new ExifTagData( data.readShort(), ifd, data.readShort(), data.readInt(),
-				data.readBytes( 4 ) );
+				data.offset(), data.readInt() );
 	}
 
 	private final ExifTagReference reference;
 	private final int count;
-	private final byte[] offset;
+	private final int position;
+	private final int offset;
 
 	private ExifTagData( final int id, final ImageFileDirectory ifd, final int type,
-			final int count, final byte[] offset ) {
+			final int count, final int position, final int offset ) {
 		this.reference = new ExifTagReference( id, ifd, FieldType.fromId( type ) );
 		this.count = count;
+		this.position = position;
 		this.offset = offset;
 	}
 
@@ -34,19 +34,42 @@ public class ExifTagData implements Supplier<ExifTagReference> {
 		return reference;
 	}
 
+	public int getCount() {
+		return count;
+	}
+
+	// The count is unsigned, so a value may claim to be far larger than any array
+	public long getLongLength() {
+		return reference.getType().getSize() * ( 0xffffffffL & count );
+	}
+
+	public int getLength() {
+		final long length = getLongLength();
+		checkState( length <= Integer.MAX_VALUE, "%s claims %s bytes", reference, length );
+		return (int) length;
+	}
+
+	// Values of up to 4 bytes are stored in place of the offset
+	public boolean isInline() {
+		return getLongLength() <= 4;
+	}
+
+	public long getOffset() {
+		return 0xffffffffL & offset;
+	}
+
+	public <T> Collection<T> get( final BufferReader data ) throws IOException {
+		return decode( slice( data ) );
+	}
+
+	// A reader holding just the value, sharing the data
+	public BufferReader slice( final BufferReader data ) {
+		return data.slice( isInline() ? position : offset, getLength() );
+	}
+
+	// Decodes a reader holding just the value
 	@SuppressWarnings("unchecked")
-	public <T> Collection<T> get( final StreamReader data ) throws IOException {
-		final int length = reference.getType().getSize() * count;
-
-		final InputStream bytes;
-		if ( length > 4 ) {
-			data.seek( DataConversions.toInt( offset, 0, data.getByteOrder() ) );
-			bytes = data.limit( length );
-		} else {
-			bytes = new ByteArrayInputStream( offset, 0, length );
-		}
-
-		return (Collection<T>) reference.getType()
-				.decode( new StreamReader( bytes, data.getByteOrder() ), length );
+	public <T> Collection<T> decode( final BufferReader value ) throws IOException {
+		return (Collection<T>) reference.getType().decode( value, getLength() );
 	}
 }
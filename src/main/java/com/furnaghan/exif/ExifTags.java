@@ -2,11 +2,14 @@ package com.furnaghan.exif;
 
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -51,11 +54,15 @@ public class ExifTags {
 	}
 
 	private final Map<ImageFileDirectory, Multimap<ExifTagReference, Object>> tags;
-	private final Collection<byte[]> thumbnails;
+	private final Map<ExifTagReference, Supplier<? extends Collection<?>>> undecoded;
+	private final Collection<ExifThumbnail> thumbnails;
+	private final List<Diagnostic> diagnostics;
 
 	private ExifTags() {
 		this.tags = new HashMap<>();
+		this.undecoded = new LinkedHashMap<>();
 		this.thumbnails = new LinkedList<>();
+		this.diagnostics = new ArrayList<>( 0 );
 
 		for ( final ImageFileDirectory ifd : ImageFileDirectory.values() ) {
 			tags.put( ifd, HashMultimap.<ExifTagReference, Object>create() );
@@ -63,6 +70,7 @@ public class ExifTags {
 	}
 
 	public Map<ExifTagReference, Collection<Object>> getDirectory( final ImageFileDirectory ifd ) {
+		decodeAll( ifd );
 		return Collections.unmodifiableMap( tags.get( ifd ).asMap() );
 	}
 
@@ -73,6 +81,7 @@ public class ExifTags {
 
 	public synchronized ExifTags add( final ExifTagReference tag, final Object value ) {
 		validateType( tag, value );
+		decode( tag );
 		tags.get( tag.getIfd() ).put( tag, value );
 		return this;
 	}
@@ -97,6 +106,7 @@ public class ExifTags {
 	public synchronized ExifTags set( final ExifTagReference tag, final Object value ) {
 		validateType( tag, value );
 
+		undecoded.remove( tag );
 		tags.get( tag.getIfd() ).removeAll( tag );
 		tags.get( tag.getIfd() ).put( tag, value );
 		return this;
@@ -107,7 +117,7 @@ public class ExifTags {
 	}
 
 	public boolean contains( final ExifTagReference tag ) {
-		return tags.get( tag.getIfd() ).containsKey( tag );
+		return undecoded.containsKey( tag ) || tags.get( tag.getIfd() ).containsKey( tag );
 	}
 
 	public <T> Collection<T> remove( final Supplier<ExifTagReference> supplier ) {
@@ -116,6 +126,7 @@ public class ExifTags {
 
 	@SuppressWarnings("unchecked")
 	public <T> Collection<T> remove( final ExifTagReference tag ) {
+		decode( tag );
 		return (Collection<T>) tags.get( tag.getIfd() ).removeAll( tag );
 	}
 
@@ -125,6 +136,7 @@ public class ExifTags {
 
 	@SuppressWarnings("unchecked")
 	public <T> Collection<T> get( final ExifTagReference tag ) {
+		decode( tag );
 		return (Collection<T>) tags.get( tag.getIfd() ).get( tag );
 	}
 
@@ -138,6 +150,7 @@ public class ExifTags {
 	}
 
 	public synchronized ExifTags clear() {
+		undecoded.clear();
 		for ( final Multimap<ExifTagReference, Object> directory : tags.values() ) {
 			directory.clear();
 		}
@@ -145,7 +158,11 @@ public class ExifTags {
 	}
 
 	public synchronized ExifTags addThumbnail( final byte[] bytes ) {
-		thumbnails.add( bytes );
+		return addThumbnail( ExifThumbnail.of( bytes ) );
+	}
+
+	public synchronized ExifTags addThumbnail( final ExifThumbnail thumbnail ) {
+		thumbnails.add( thumbnail );
 		return this;
 	}
 
@@ -153,12 +170,58 @@ public class ExifTags {
 		return !thumbnails.isEmpty();
 	}
 
-	public Collection<byte[]> getThumbnails() {
+	// A copy of the bytes of each thumbnail, see getThumbnailHandles() to avoid the copies
+	public synchronized Collection<byte[]> getThumbnails() {
+		final List<byte[]> bytes = new ArrayList<>( thumbnails.size() );
+		for ( final ExifThumbnail thumbnail : thumbnails ) {
+			bytes.add( thumbnail.getBytes() );
+		}
+		return Collections.unmodifiableList( bytes );
+	}
+
+	public Collection<ExifThumbnail> getThumbnailHandles() {
 		return Collections.unmodifiableCollection( thumbnails );
 	}
 
+	public synchronized ExifTags addDiagnostic( final Diagnostic diagnostic ) {
+		diagnostics.add( diagnostic );
+		return this;
+	}
+
+	// Any problems found while reading leniently, always empty when reading strictly
+	public List<Diagnostic> getDiagnostics() {
+		return Collections.unmodifiableList( diagnostics );
+	}
+
+	// Values which are only decoded, once, the first time the tag is accessed
+	public synchronized ExifTags addUndecoded( final ExifTagReference tag,
+			final Supplier<? extends Collection<?>> values ) {
+		decode( tag );
+		undecoded.put( tag, values );
+		return this;
+	}
+
+	private synchronized void decode( final ExifTagReference tag ) {
+		final Supplier<? extends Collection<?>> values = undecoded.remove( tag );
+		if ( values != null ) {
+			addAll( tag, values.get() );
+		}
+	}
+
+	private synchronized void decodeAll( final ImageFileDirectory ifd ) {
+		for ( final ExifTagReference tag : new ArrayList<>( undecoded.keySet() ) ) {
+			if ( tag.getIfd() == ifd ) {
+				decode( tag );
+			}
+		}
+	}
+
 	@Override
 	public String toString() {
+		for ( final ImageFileDirectory ifd : ImageFileDirectory.values() ) {
+			decodeAll( ifd );
+		}
+
 		final StringBuilder builder = new StringBuilder();
 		for ( final Multimap<ExifTagReference, Object> directory : tags.values() ) {
 			for ( final Map.Entry<ExifTagReference, Collection<Object>> entry : directory.asMap()
@@ -213,7 +276,8 @@ public class ExifTags {
 			}
 		}
 
-		private static Orientation fromValue( final int value ) {
+		// Null for values outside the specification
+		public static Orientation fromValue( final int value ) {
 			return orientationByValue.get( value );
 		}
 	}
@@ -0,0 +1,68 @@
+package com.furnaghan.exif;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+// A handle on an embedded thumbnail, sharing the buffer it was read from. The bytes are only
+// copied out when asked for, so an untouched thumbnail of an in memory image costs nothing.
+public class ExifThumbnail {
+
+	public static ExifThumbnail of( final byte[] bytes ) {
+		return new ExifThumbnail( -1, ByteBuffer.wrap( bytes ) );
+	}
+
+	private final long offset;
+	private final ByteBuffer buffer;
+
+	public ExifThumbnail( final long offset, final ByteBuffer buffer ) {
+		this.offset = offset;
+		this.buffer = buffer.slice();
+	}
+
+	// The offset from the start of the TIFF data, or -1 if it wasn't read from an image
+	public long getOffset() {
+		return offset;
+	}
+
+	public int getLength() {
+		return buffer.remaining();
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer.asReadOnlyBuffer();
+	}
+
+	// A handle on a copy of the bytes, no longer sharing the buffer it was read from
+	public ExifThumbnail copy() {
+		return new ExifThumbnail( offset, ByteBuffer.wrap( getBytes() ) );
+	}
+
+	public byte[] getBytes() {
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get( bytes );
+		return bytes;
+	}
+
+	public void writeTo( final WritableByteChannel channel ) throws IOException {
+		final ByteBuffer bytes = buffer.duplicate();
+		while ( bytes.hasRemaining() ) {
+			channel.write( bytes );
+		}
+	}
+
+	public void writeTo( final OutputStream out ) throws IOException {
+		if ( buffer.hasArray() ) {
+			out.write( buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+		} else {
+			writeTo( Channels.newChannel( out ) );
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ExifThumbnail{offset=" + offset + ", length=" + getLength() + "}";
+	}
+}
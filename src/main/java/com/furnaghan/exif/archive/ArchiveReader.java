@@ -0,0 +1,141 @@
+package com.furnaghan.exif.archive;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.furnaghan.exif.ExifTags;
+import com.furnaghan.exif.parser.ExifParser;
+
+// Reads the exif data of every JPEG in a ZIP or (optionally gzipped) TAR archive in a single pass,
+// without extracting anything. Each entry is only read up to its exif segment.
+public class ArchiveReader {
+
+	private static final Logger LOG = LoggerFactory.getLogger( ArchiveReader.class );
+
+	private static final int ZIP_MAGIC = 0x504B0304;
+	private static final int GZIP_MAGIC = 0x1F8B;
+
+	public static void read( final File file, final EntryVisitor visitor ) throws IOException {
+		final int magic;
+		try ( final InputStream in = new FileInputStream( file ) ) {
+			magic = readMagic( in );
+		}
+
+		if ( magic == ZIP_MAGIC ) {
+			// The central directory lets each entry be opened and abandoned without inflating it
+			try ( final ZipFile zip = new ZipFile( file ) ) {
+				readZip( zip, visitor );
+			}
+		} else {
+			// Skipping over the rest of a tar entry is a seek on the underlying file
+			try ( final InputStream in = new FileInputStream( file ) ) {
+				read( in, magic, visitor );
+			}
+		}
+	}
+
+	public static void read( final InputStream input, final EntryVisitor visitor )
+			throws IOException {
+		final InputStream in = new BufferedInputStream( input );
+		in.mark( 4 );
+		final int magic = readMagic( in );
+		in.reset();
+		read( in, magic, visitor );
+	}
+
+	private static void read( final InputStream in, final int magic, final EntryVisitor visitor )
+			throws IOException {
+		if ( magic == ZIP_MAGIC ) {
+			readZip( in, visitor );
+		} else if ( magic >>> 16 == GZIP_MAGIC ) {
+			readTar( new GZIPInputStream( in ), visitor );
+		} else {
+			readTar( in, visitor );
+		}
+	}
+
+	public static void readZip( final ZipFile zip, final EntryVisitor visitor ) throws IOException {
+		final Enumeration<? extends ZipEntry> entries = zip.entries();
+		while ( entries.hasMoreElements() ) {
+			final ZipEntry entry = entries.nextElement();
+			if ( !entry.isDirectory() && isJpeg( entry.getName() ) ) {
+				try ( final InputStream in = zip.getInputStream( entry ) ) {
+					if ( !visit( entry.getName(), in, visitor ) ) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	// A zip stream has no directory to seek with, so the rest of each entry is still inflated
+	// to find the next one, though never written anywhere.
+	public static void readZip( final InputStream in, final EntryVisitor visitor )
+			throws IOException {
+		final ZipInputStream zip = new ZipInputStream( in );
+		ZipEntry entry;
+		while ( ( entry = zip.getNextEntry() ) != null ) {
+			if ( !entry.isDirectory() && isJpeg( entry.getName() ) ) {
+				if ( !visit( entry.getName(), zip, visitor ) ) {
+					return;
+				}
+			}
+		}
+	}
+
+	public static void readTar( final InputStream in, final EntryVisitor visitor )
+			throws IOException {
+		final TarReader tar = new TarReader( in );
+		String name;
+		while ( ( name = tar.next() ) != null ) {
+			if ( isJpeg( name ) ) {
+				if ( !visit( name, tar.stream(), visitor ) ) {
+					return;
+				}
+			}
+		}
+	}
+
+	private static boolean visit( final String name, final InputStream in,
+			final EntryVisitor visitor ) throws IOException {
+		final ExifTags exif;
+		try {
+			exif = ExifParser.read( in );
+		} catch ( final Exception e ) {
+			LOG.warn( "Failed to read exif data from {}", name, e );
+			return true;
+		}
+		return visitor.visit( name, exif );
+	}
+
+	private static boolean isJpeg( final String name ) {
+		final String lower = name.toLowerCase( Locale.ROOT );
+		return lower.endsWith( ".jpg" ) || lower.endsWith( ".jpeg" );
+	}
+
+	private static int readMagic( final InputStream in ) throws IOException {
+		int magic = 0;
+		for ( int i = 0; i < 4; i++ ) {
+			final int read = in.read();
+			magic = ( magic << 8 ) | ( read < 0 ? 0 : read );
+		}
+		return magic;
+	}
+
+	public interface EntryVisitor {
+		// Return false to stop reading the archive
+		boolean visit( final String name, final ExifTags exif ) throws IOException;
+	}
+}
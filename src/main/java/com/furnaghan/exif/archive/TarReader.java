@@ -0,0 +1,203 @@
+package com.furnaghan.exif.archive;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
+// A minimal sequential reader for ustar archives, including GNU and pax long names. Only regular
+// files are returned, whatever is left unread of an entry is skipped when moving to the next one.
+class TarReader {
+
+	private static final int BLOCK_SIZE = 512;
+	private static final int SIZE_OFFSET = 124;
+	private static final int CHECKSUM_OFFSET = 148;
+	private static final int TYPE_OFFSET = 156;
+	private static final int MAGIC_OFFSET = 257;
+	private static final int PREFIX_OFFSET = 345;
+
+	// Far longer than any path, a long name or pax header claiming more is rejected unread
+	private static final int MAX_HEADER_DATA = 8 * 1024;
+
+	private final InputStream in;
+	private final byte[] header;
+	private CountingInputStream entry;
+	private long entrySize;
+
+	TarReader( final InputStream in ) {
+		this.in = in;
+		this.header = new byte[BLOCK_SIZE];
+		this.entry = null;
+		this.entrySize = 0;
+	}
+
+	// The name of the next file in the archive, or null once there are no more
+	String next() throws IOException {
+		skipEntry();
+
+		String longName = null;
+		while ( readHeader() ) {
+			final long size = readSize();
+			if ( size < 0 ) {
+				throw new IOException( "Invalid tar entry size" );
+			}
+			final String name = longName != null ? longName : readName();
+			longName = null;
+
+			switch ( header[TYPE_OFFSET] ) {
+			case '0':
+			case '7':
+			case 0:
+				entry = new CountingInputStream( ByteStreams.limit( in, size ) );
+				entrySize = size;
+				return name;
+			case 'L':
+				longName = trim( readData( size ), 0, (int) size );
+				break;
+			case 'x':
+				longName = readPaxPath( readData( size ) );
+				break;
+			default:
+				// Directories, links and anything else without data we want
+				ByteStreams.skipFully( in, size + padding( size ) );
+			}
+		}
+		return null;
+	}
+
+	// The data of the current entry
+	InputStream stream() {
+		return entry;
+	}
+
+	private void skipEntry() throws IOException {
+		if ( entry != null ) {
+			ByteStreams.skipFully( in, entrySize - entry.getCount() + padding( entrySize ) );
+			entry = null;
+		}
+	}
+
+	private boolean readHeader() throws IOException {
+		final int read = ByteStreams.read( in, header, 0, BLOCK_SIZE );
+		if ( read == 0 ) {
+			return false;
+		}
+		if ( read < BLOCK_SIZE ) {
+			throw new EOFException( "Truncated tar header" );
+		}
+
+		// The archive ends with zero blocks
+		long checksum = 0;
+		for ( int i = 0; i < BLOCK_SIZE; i++ ) {
+			final boolean inChecksum = i >= CHECKSUM_OFFSET && i < CHECKSUM_OFFSET + 8;
+			checksum += inChecksum ? ' ' : 0xff & header[i];
+		}
+		if ( checksum == 8 * ' ' ) {
+			return false;
+		}
+		if ( checksum != parseOctal( CHECKSUM_OFFSET, 8 ) ) {
+			throw new IOException( "Invalid tar header checksum" );
+		}
+		return true;
+	}
+
+	private long readSize() {
+		// Sizes over 8GB are stored as big endian binary, flagged by the top bit
+		if ( ( header[SIZE_OFFSET] & 0x80 ) != 0 ) {
+			long size = 0;
+			for ( int i = SIZE_OFFSET + 1; i < SIZE_OFFSET + 12; i++ ) {
+				size = ( size << 8 ) | ( 0xff & header[i] );
+			}
+			return size;
+		}
+		return parseOctal( SIZE_OFFSET, 12 );
+	}
+
+	private String readName() {
+		final String name = trim( header, 0, 100 );
+		final String magic = trim( header, MAGIC_OFFSET, 5 );
+		if ( magic.equals( "ustar" ) ) {
+			final String prefix = trim( header, PREFIX_OFFSET, 155 );
+			if ( !prefix.isEmpty() ) {
+				return prefix + "/" + name;
+			}
+		}
+		return name;
+	}
+
+	private byte[] readData( final long size ) throws IOException {
+		if ( size > MAX_HEADER_DATA ) {
+			throw new IOException( "Tar header data too long: " + size + " bytes" );
+		}
+		final byte[] bytes = new byte[(int) size];
+		ByteStreams.readFully( in, bytes );
+		ByteStreams.skipFully( in, padding( size ) );
+		return bytes;
+	}
+
+	// Pax records are "<length> <key>=<value>\n", of which we only want the path
+	private static String readPaxPath( final byte[] bytes ) throws IOException {
+		int offset = 0;
+		while ( offset < bytes.length ) {
+			final int space = indexOf( bytes, offset, ' ' );
+			if ( space < 0 ) {
+				throw new IOException( "Invalid pax record at offset=" + offset );
+			}
+			final int length;
+			try {
+				length = Integer.parseInt( new String( bytes, offset, space - offset,
+						Charsets.US_ASCII ) );
+			} catch ( final NumberFormatException e ) {
+				throw new IOException( "Invalid pax record length at offset=" + offset, e );
+			}
+			// The length covers the whole record, including itself and the trailing newline
+			if ( length <= 0 || offset + length > bytes.length
+					|| space + 1 > offset + length - 1 ) {
+				throw new IOException( "Invalid pax record length=" + length + " at offset="
+						+ offset );
+			}
+
+			final String record = new String( bytes, space + 1, offset + length - space - 2,
+					Charsets.UTF_8 );
+			if ( record.startsWith( "path=" ) ) {
+				return record.substring( 5 );
+			}
+			offset += length;
+		}
+		return null;
+	}
+
+	private long parseOctal( final int offset, final int length ) {
+		long value = 0;
+		for ( int i = offset; i < offset + length; i++ ) {
+			if ( header[i] >= '0' && header[i] <= '7' ) {
+				value = ( value << 3 ) + ( header[i] - '0' );
+			} else if ( header[i] == 0 || ( header[i] == ' ' && value > 0 ) ) {
+				break;
+			}
+		}
+		return value;
+	}
+
+	private static String trim( final byte[] bytes, final int offset, final int length ) {
+		final int end = indexOf( bytes, offset, 0 );
+		final int limit = end < 0 || end > offset + length ? offset + length : end;
+		return new String( bytes, offset, limit - offset, Charsets.UTF_8 );
+	}
+
+	private static int indexOf( final byte[] bytes, final int offset, final int value ) {
+		for ( int i = offset; i < bytes.length; i++ ) {
+			if ( bytes[i] == value ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static long padding( final long size ) {
+		return ( BLOCK_SIZE - size % BLOCK_SIZE ) % BLOCK_SIZE;
+	}
+}
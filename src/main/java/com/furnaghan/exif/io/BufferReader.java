@@ -0,0 +1,140 @@
+package com.furnaghan.exif.io;
+
+import static com.furnaghan.exif.io.StreamReader.BYTE_ORDERS;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.furnaghan.exif.jpeg.Marker;
+import com.furnaghan.exif.math.Rational;
+
+public class BufferReader {
+
+	private static final Logger LOG = LoggerFactory.getLogger( BufferReader.class );
+
+	private final ByteBuffer buffer;
+	private final boolean verbose;
+	private int mark;
+
+	public BufferReader( final ByteBuffer buffer, final ByteOrder byteOrder ) {
+		this( buffer, byteOrder, false );
+	}
+
+	public BufferReader( final ByteBuffer buffer, final ByteOrder byteOrder,
+			final boolean verbose ) {
+		this.buffer = buffer.slice().order( byteOrder );
+		this.verbose = verbose;
+		this.mark = 0;
+	}
+
+	public ByteOrder getByteOrder() {
+		return buffer.order();
+	}
+
+	public void setByteOrder( final ByteOrder byteOrder ) {
+		buffer.order( byteOrder );
+	}
+
+	public boolean available() {
+		return buffer.hasRemaining();
+	}
+
+	public int remaining() {
+		return buffer.remaining();
+	}
+
+	public int offset() {
+		return buffer.position() - mark;
+	}
+
+	// The number of bytes from the mark to the end of the data
+	public int length() {
+		return buffer.limit() - mark;
+	}
+
+	// Reads the short at the given offset from the mark without moving
+	public int getShort( final int offset ) {
+		return 0xffff & buffer.getShort( mark + offset );
+	}
+
+	public ByteBuffer readBuffer( final int length ) {
+		final ByteBuffer bytes = buffer.slice();
+		bytes.limit( length );
+		buffer.position( buffer.position() + length );
+		return bytes;
+	}
+
+	public byte[] readBytes( final int length ) {
+		final byte[] bytes = new byte[length];
+		buffer.get( bytes );
+		if ( verbose ) {
+			LOG.error( "read: {}", bytes );
+		}
+		return bytes;
+	}
+
+	public int readShort() {
+		return 0xffff & buffer.getShort();
+	}
+
+	public int readInt() {
+		return buffer.getInt();
+	}
+
+	public Rational readRational() {
+		final int numerator = buffer.getInt();
+		final int denominator = buffer.getInt();
+		return Rational.rational( numerator, denominator );
+	}
+
+	public float readFloat() {
+		return buffer.getFloat();
+	}
+
+	public double readDouble() {
+		return buffer.getDouble();
+	}
+
+	public String readString( final int length ) {
+		return DataConversions.toString( readBytes( length ) );
+	}
+
+	// Skips any fill bytes, or anything else which isn't a marker, up to the next marker
+	public Marker readMarker() {
+		int previous = 0xff & buffer.get();
+		int current = 0xff & buffer.get();
+		while ( previous != 0xff || current == 0xff || current == 0 ) {
+			previous = current;
+			current = 0xff & buffer.get();
+		}
+		final Marker marker = Marker.fromCode( current );
+		checkState( marker != null, "Unknown marker 0xFF%s", Integer.toHexString( current ) );
+		return marker;
+	}
+
+	public ByteOrder readByteOrder() {
+		final int value = readShort();
+		checkState( BYTE_ORDERS.containsKey( value ) );
+		return BYTE_ORDERS.get( value );
+	}
+
+	public void mark() {
+		this.mark = buffer.position();
+	}
+
+	public void seek( final int offset ) {
+		buffer.position( mark + offset );
+	}
+
+	// A view of length bytes at the given offset from the mark, sharing the underlying buffer
+	public BufferReader slice( final int offset, final int length ) {
+		final ByteBuffer bytes = buffer.duplicate();
+		bytes.limit( mark + offset + length );
+		bytes.position( mark + offset );
+		return new BufferReader( bytes, buffer.order(), verbose );
+	}
+}
@@ -0,0 +1,25 @@
+package com.furnaghan.exif.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Positional reads leave the position of the channel untouched, so it may be shared
+public class ChannelByteSource implements SeekableByteSource {
+
+	private final FileChannel channel;
+
+	public ChannelByteSource( final FileChannel channel ) {
+		this.channel = channel;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return channel.size();
+	}
+
+	@Override
+	public int read( final ByteBuffer dst, final long position ) throws IOException {
+		return channel.read( dst, position );
+	}
+}
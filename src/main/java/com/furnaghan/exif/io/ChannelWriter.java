@@ -0,0 +1,173 @@
+package com.furnaghan.exif.io;
+
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.furnaghan.exif.jpeg.Marker;
+
+// Collects segment headers and payloads as buffers, flushing them to the channel in as few
+// (gathering) writes as possible. Big endian only, as used by the JPEG structure.
+public class ChannelWriter implements Flushable {
+
+	private static final int SCRATCH_SIZE = 8192;
+	private static final int MAX_PENDING_BYTES = 64 * 1024;
+	private static final int MAX_PENDING_BUFFERS = 64;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer scratch;
+	private final List<ByteBuffer> pending;
+	private int scratchStart;
+	private long pendingBytes;
+	private long writes;
+	private long bytes;
+
+	public ChannelWriter( final WritableByteChannel channel ) {
+		this.channel = channel;
+		this.scratch = ByteBuffer.allocate( SCRATCH_SIZE );
+		this.pending = new ArrayList<>();
+		this.scratchStart = 0;
+		this.pendingBytes = 0;
+		this.writes = 0;
+		this.bytes = 0;
+	}
+
+	// The number of write calls made against the channel
+	public long getWrites() {
+		return writes;
+	}
+
+	// The number of bytes written to the channel
+	public long getBytes() {
+		return bytes;
+	}
+
+	public void writeShort( final int value ) throws IOException {
+		if ( scratch.remaining() < 2 ) {
+			flush();
+		}
+		scratch.putShort( (short) value );
+	}
+
+	public void writeMarker( final Marker marker ) throws IOException {
+		writeShort( marker.getId() );
+	}
+
+	public void writeBytes( final byte[] bytes ) throws IOException {
+		writeBuffer( ByteBuffer.wrap( bytes ) );
+	}
+
+	public void writeBuffer( final ByteBuffer buffer ) throws IOException {
+		// Small payloads are copied alongside the headers, anything else is queued as it is
+		if ( buffer.remaining() <= scratch.remaining() / 4 ) {
+			scratch.put( buffer.duplicate() );
+			return;
+		}
+
+		enqueueScratch();
+		pending.add( buffer.duplicate() );
+		pendingBytes += buffer.remaining();
+
+		if ( pendingBytes >= MAX_PENDING_BYTES || pending.size() >= MAX_PENDING_BUFFERS ) {
+			flush();
+		}
+	}
+
+	public void writeStream( final InputStream in ) throws IOException {
+		flush();
+
+		// The scratch buffer is free once flushed, so use it to copy the stream
+		final ReadableByteChannel source = Channels.newChannel( in );
+		while ( source.read( scratch ) >= 0 ) {
+			scratch.flip();
+			while ( scratch.hasRemaining() ) {
+				count( channel.write( scratch ) );
+			}
+			scratch.clear();
+		}
+	}
+
+	// Copies exactly length bytes from the stream alongside the headers, going through the
+	// scratch buffer so no more than that is ever held at once
+	public void writeStream( final InputStream in, int length ) throws IOException {
+		while ( length > 0 ) {
+			if ( !scratch.hasRemaining() ) {
+				flush();
+			}
+			final int read = in.read( scratch.array(), scratch.position(), Math.min( length,
+					scratch.remaining() ) );
+			if ( read < 0 ) {
+				throw new EOFException();
+			}
+			scratch.position( scratch.position() + read );
+			length -= read;
+		}
+	}
+
+	// Copies the remainder of the file from the given position without passing through the heap
+	public void transfer( final FileChannel input, long position ) throws IOException {
+		flush();
+
+		final long size = input.size();
+		while ( position < size ) {
+			final long transferred = input.transferTo( position, size - position, channel );
+			if ( transferred <= 0 ) {
+				throw new EOFException();
+			}
+			count( transferred );
+			position += transferred;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		enqueueScratch();
+
+		final ByteBuffer[] buffers = pending.toArray( new ByteBuffer[pending.size()] );
+		if ( channel instanceof GatheringByteChannel ) {
+			final GatheringByteChannel gathering = (GatheringByteChannel) channel;
+			while ( pendingBytes > 0 ) {
+				final long written = gathering.write( buffers );
+				count( written );
+				pendingBytes -= written;
+			}
+		} else {
+			for ( final ByteBuffer buffer : buffers ) {
+				while ( buffer.hasRemaining() ) {
+					count( channel.write( buffer ) );
+				}
+			}
+		}
+
+		pending.clear();
+		pendingBytes = 0;
+		scratch.clear();
+		scratchStart = 0;
+	}
+
+	private void enqueueScratch() {
+		if ( scratch.position() > scratchStart ) {
+			final ByteBuffer header = scratch.duplicate();
+			header.limit( scratch.position() );
+			header.position( scratchStart );
+
+			pending.add( header );
+			pendingBytes += header.remaining();
+			scratchStart = scratch.position();
+		}
+	}
+
+	private void count( final long written ) {
+		writes++;
+		bytes += written;
+	}
+}
@@ -0,0 +1,112 @@
+package com.furnaghan.exif.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Caches the ranges fetched from a slow source, such as remote storage, so the many small reads
+// made walking the segments turn into a few large range requests. Each request fetches at least
+// twice as much as the last, and a read shortly after an existing range extends that range rather
+// than starting a new one. Not thread safe, wrap the shared source once per read.
+public class CoalescingByteSource implements SeekableByteSource {
+
+	private static final int INITIAL_FETCH_SIZE = 16 * 1024;
+	private static final int MAX_FETCH_SIZE = 1024 * 1024;
+	private static final int MAX_GAP = 16 * 1024;
+
+	private final SeekableByteSource source;
+	private final TreeMap<Long, ByteBuffer> ranges;
+	private long size;
+	private int fetchSize;
+
+	public CoalescingByteSource( final SeekableByteSource source ) {
+		this.source = source;
+		this.ranges = new TreeMap<>();
+		this.size = -1;
+		this.fetchSize = INITIAL_FETCH_SIZE;
+	}
+
+	@Override
+	public long size() throws IOException {
+		if ( size < 0 ) {
+			size = source.size();
+		}
+		return size;
+	}
+
+	@Override
+	public int read( final ByteBuffer dst, long position ) throws IOException {
+		if ( position >= size() ) {
+			return -1;
+		}
+
+		final int start = dst.position();
+		while ( dst.hasRemaining() && position < size() ) {
+			ByteBuffer range = cached( position );
+			if ( range == null ) {
+				range = fetch( position, dst.remaining() );
+			}
+
+			final ByteBuffer bytes = range.duplicate();
+			bytes.position( (int) ( position - ranges.floorKey( position ) ) );
+			if ( bytes.remaining() > dst.remaining() ) {
+				bytes.limit( bytes.position() + dst.remaining() );
+			}
+
+			position += bytes.remaining();
+			dst.put( bytes );
+		}
+		return dst.position() - start;
+	}
+
+	private ByteBuffer cached( final long position ) {
+		final Map.Entry<Long, ByteBuffer> entry = ranges.floorEntry( position );
+		if ( entry != null && position < entry.getKey() + entry.getValue().capacity() ) {
+			return entry.getValue();
+		}
+		return null;
+	}
+
+	private ByteBuffer fetch( final long position, final int length ) throws IOException {
+		// Close a small gap after the previous range rather than leaving a hole
+		long start = position;
+		final Map.Entry<Long, ByteBuffer> previous = ranges.floorEntry( position );
+		if ( previous != null ) {
+			final long previousEnd = previous.getKey() + previous.getValue().capacity();
+			if ( position - previousEnd <= MAX_GAP ) {
+				start = previousEnd;
+			}
+		}
+
+		long end = Math.min( size(), Math.max( position + length, start + fetchSize ) );
+		final Long next = ranges.higherKey( start );
+		if ( next != null ) {
+			end = Math.min( end, next );
+		}
+
+		final ByteBuffer bytes = ByteBuffer.allocate( (int) ( end - start ) );
+		readFully( bytes, start );
+
+		ranges.put( start, bytes );
+		fetchSize = Math.min( fetchSize * 2, MAX_FETCH_SIZE );
+		return bytes;
+	}
+
+	// Every byte asked for is before the end of the source, so a read which makes no progress
+	// would otherwise be retried forever
+	private void readFully( final ByteBuffer bytes, final long position ) throws IOException {
+		while ( bytes.hasRemaining() ) {
+			final long offset = position + bytes.position();
+			final int read = source.read( bytes, offset );
+			if ( read < 0 ) {
+				throw new EOFException();
+			}
+			if ( read == 0 ) {
+				throw new IOException( "No bytes read at position=" + offset
+						+ " before the end of the source" );
+			}
+		}
+	}
+}
@@ -67,16 +67,8 @@ public class DataConversions {
 		}
 	}
 
-	public static float toFloat( final byte[] bytes, int offset, final ByteOrder byteOrder ) {
-		final int byte0 = 0xff & bytes[offset++];
-		final int byte1 = 0xff & bytes[offset++];
-		final int byte2 = 0xff & bytes[offset++];
-		final int byte3 = 0xff & bytes[offset++];
-		if ( byteOrder == ByteOrder.BIG_ENDIAN ) {
-			return Float.intBitsToFloat( ( byte0 << 24 ) | ( byte1 << 16 ) | ( byte2 << 8 ) | byte3 );
-		} else {
-			return Float.intBitsToFloat( ( byte3 << 24 ) | ( byte2 << 16 ) | ( byte1 << 8 ) | byte0 );
-		}
+	public static float toFloat( final byte[] bytes, final int offset, final ByteOrder byteOrder ) {
+		return Float.intBitsToFloat( toInt( bytes, offset, byteOrder ) );
 	}
 
 	public static byte[] fromFloat( final float value, final ByteOrder byteOrder ) {
@@ -84,22 +76,21 @@ public class DataConversions {
 		return fromInt( bits, byteOrder );
 	}
 
-	public static double toDouble( final byte[] bytes, int offset, final ByteOrder byteOrder ) {
-		final long byte0 = 0xffL & bytes[offset++];
-		final long byte1 = 0xffL & bytes[offset++];
-		final long byte2 = 0xffL & bytes[offset++];
-		final long byte3 = 0xffL & bytes[offset++];
-		final long byte4 = 0xffL & bytes[offset++];
-		final long byte5 = 0xffL & bytes[offset++];
-		final long byte6 = 0xffL & bytes[offset++];
-		final long byte7 = 0xffL & bytes[offset++];
+	public static long toLong( final byte[] bytes, final int offset, final ByteOrder byteOrder ) {
+		final long first = 0xffffffffL & toInt( bytes, offset, byteOrder );
+		final long second = 0xffffffffL & toInt( bytes, offset + 4, byteOrder );
 		if ( byteOrder == ByteOrder.BIG_ENDIAN ) {
-			return Double.longBitsToDouble( ( byte0 << 56 ) | ( byte1 << 48 ) | ( byte2 << 40 ) | ( byte3 << 32 ) | ( byte4 << 24 ) | ( byte5 << 16 ) | ( byte6 << 8 ) | byte7 );
+			return ( first << 32 ) | second;
 		} else {
-			return Double.longBitsToDouble( ( byte7 << 56 ) | ( byte6 << 48 ) | ( byte5 << 40 ) | ( byte4 << 32 ) | ( byte3 << 24 ) | ( byte2 << 16 ) | ( byte1 << 8 ) | byte0 );
+			return ( second << 32 ) | first;
 		}
 	}
 
+	public static double toDouble( final byte[] bytes, final int offset,
+			final ByteOrder byteOrder ) {
+		return Double.longBitsToDouble( toLong( bytes, offset, byteOrder ) );
+	}
+
 	public static byte[] fromDouble( final double value, final ByteOrder byteOrder ) {
 		final long bits = Double.doubleToRawLongBits( value );
 		if ( byteOrder == ByteOrder.LITTLE_ENDIAN ) {
@@ -123,24 +114,11 @@ public class DataConversions {
 		}
 	}
 
-	public static Rational toRational( final byte[] bytes, int offset, final ByteOrder byteOrder ) {
-		final int byte0 = 0xff & bytes[offset++];
-		final int byte1 = 0xff & bytes[offset++];
-		final int byte2 = 0xff & bytes[offset++];
-		final int byte3 = 0xff & bytes[offset++];
-		final int byte4 = 0xff & bytes[offset++];
-		final int byte5 = 0xff & bytes[offset++];
-		final int byte6 = 0xff & bytes[offset++];
-		final int byte7 = 0xff & bytes[offset++];
-		if ( byteOrder == ByteOrder.BIG_ENDIAN ) {
-			final int numerator = ( byte0 << 24 ) | ( byte1 << 16 ) | ( byte2 << 8 ) | byte3;
-			final int divisor = ( byte4 << 24 ) | ( byte5 << 16 ) | ( byte6 << 8 ) | byte7;
-			return Rational.rational( numerator, divisor );
-		} else {
-			final int numerator = ( byte3 << 24 ) | ( byte2 << 16 ) | ( byte1 << 8 ) | byte0;
-			final int divisor = ( byte7 << 24 ) | ( byte6 << 16 ) | ( byte5 << 8 ) | byte4;
-			return Rational.rational( numerator, divisor );
-		}
+	public static Rational toRational( final byte[] bytes, final int offset,
+			final ByteOrder byteOrder ) {
+		final int numerator = toInt( bytes, offset, byteOrder );
+		final int divisor = toInt( bytes, offset + 4, byteOrder );
+		return Rational.rational( numerator, divisor );
 	}
 
 	public static byte[] fromRational( final Rational value, final ByteOrder byteOrder ) {
@@ -17,7 +17,7 @@ import com.furnaghan.exif.math.Rational;
 public enum FieldType {
 	Byte( 0x01, 1, new Codec<byte[]>() {
 		@Override
-		public Collection<byte[]> decode( final StreamReader in, final int length )
+		public Collection<byte[]> decode( final BufferReader in, final int length )
 				throws IOException {
 			return Collections.singletonList( in.readBytes( length / Byte.size ) );
 		}
@@ -41,7 +41,7 @@ public enum FieldType {
 	}, Byte[].class, byte[].class ),
 	Ascii( 0x02, 1, new Codec<String>() {
 		@Override
-		public Collection<String> decode( final StreamReader in, final int length )
+		public Collection<String> decode( final BufferReader in, final int length )
 				throws IOException {
 			return Collections.singletonList( in.readString( length / Ascii.size ).trim() );
 		}
@@ -65,7 +65,7 @@ public enum FieldType {
 	}, String.class ),
 	Short( 0x03, 2, new Codec<Integer>() {
 		@Override
-		public Collection<Integer> decode( final StreamReader in, final int length )
+		public Collection<Integer> decode( final BufferReader in, final int length )
 				throws IOException {
 			final Collection<Integer> values = new LinkedList<>();
 			while ( in.available() ) {
@@ -89,7 +89,7 @@ public enum FieldType {
 	}, Short.class, short.class, Integer.class, int.class ),
 	Long( 0x04, 4, new Codec<Integer>() {
 		@Override
-		public Collection<Integer> decode( final StreamReader in, final int length )
+		public Collection<Integer> decode( final BufferReader in, final int length )
 				throws IOException {
 			final Collection<Integer> values = new LinkedList<>();
 			while ( in.available() ) {
@@ -113,7 +113,7 @@ public enum FieldType {
 	}, Integer.class, int.class ),
 	Rational( 0x05, 8, new Codec<Rational>() {
 		@Override
-		public Collection<Rational> decode( final StreamReader in, final int length )
+		public Collection<Rational> decode( final BufferReader in, final int length )
 				throws IOException {
 			final Collection<Rational> values = new LinkedList<>();
 			while ( in.available() ) {
@@ -142,7 +142,7 @@ public enum FieldType {
 	SRational( 0x0A, 8, Rational.converter, Rational.types ),
 	Float( 0x0B, 4, new Codec<Float>() {
 		@Override
-		public Collection<Float> decode( final StreamReader in, final int length )
+		public Collection<Float> decode( final BufferReader in, final int length )
 				throws IOException {
 			final Collection<Float> values = new LinkedList<>();
 			while ( in.available() ) {
@@ -166,7 +166,7 @@ public enum FieldType {
 	}, Float.class, float.class ),
 	Double( 0x0C, 8, new Codec<Double>() {
 		@Override
-		public Collection<Double> decode( final StreamReader in, final int length )
+		public Collection<Double> decode( final BufferReader in, final int length )
 				throws IOException {
 			final Collection<Double> values = new LinkedList<>();
 			while ( in.available() ) {
@@ -222,7 +222,7 @@ public enum FieldType {
 		return converter.length( values );
 	}
 
-	public Collection<?> decode( final StreamReader in, final int length ) throws IOException {
+	public Collection<?> decode( final BufferReader in, final int length ) throws IOException {
 		return converter.decode( in, length );
 	}
 
@@ -243,6 +243,10 @@ public enum FieldType {
 		}
 	}
 
+	public static boolean isKnown( final int type ) {
+		return typesById.containsKey( type );
+	}
+
 	public static FieldType fromId( final int type ) {
 		if ( !typesById.containsKey( type ) ) {
 			throw new IllegalStateException( "Unknown field type: " + Integer.toHexString( type ) );
@@ -252,7 +256,7 @@ public enum FieldType {
 	}
 
 	private interface Codec<T> {
-		Collection<T> decode( final StreamReader in, final int length ) throws IOException;
+		Collection<T> decode( final BufferReader in, final int length ) throws IOException;
 
 		void encode( final Collection<T> values, final StreamWriter out ) throws IOException;
 
@@ -0,0 +1,14 @@
+package com.furnaghan.exif.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// A source of bytes which can be read at any position, such as a file or an object in remote
+// storage. Implementations shared between threads must support concurrent reads.
+public interface SeekableByteSource {
+	long size() throws IOException;
+
+	// Reads up to dst.remaining() bytes from the given position, returning the number of bytes
+	// read or -1 if the position is at or beyond the end of the source.
+	int read( final ByteBuffer dst, final long position ) throws IOException;
+}
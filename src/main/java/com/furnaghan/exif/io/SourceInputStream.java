@@ -0,0 +1,55 @@
+package com.furnaghan.exif.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+// Reads a source from start to end using positional reads, skipping is just a change of position
+public class SourceInputStream extends InputStream {
+
+	private final SeekableByteSource source;
+	private final long size;
+	private long position;
+
+	public SourceInputStream( final SeekableByteSource source ) throws IOException {
+		this( source, 0 );
+	}
+
+	// Starts reading from the given position rather than the start of the source
+	public SourceInputStream( final SeekableByteSource source, final long position )
+			throws IOException {
+		this.source = source;
+		this.size = source.size();
+		this.position = position;
+	}
+
+	@Override
+	public int read() throws IOException {
+		final byte[] bytes = new byte[1];
+		return read( bytes, 0, 1 ) < 0 ? -1 : 0xff & bytes[0];
+	}
+
+	@Override
+	public int read( final byte[] bytes, final int offset, final int length ) throws IOException {
+		if ( length == 0 ) {
+			return 0;
+		}
+		final int read = source.read( ByteBuffer.wrap( bytes, offset, length ), position );
+		if ( read > 0 ) {
+			position += read;
+		}
+		return read;
+	}
+
+	@Override
+	public long skip( final long length ) {
+		final long skipped = Math.max( 0, Math.min( length, size - position ) );
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.max( 0, Math.min( size - position, Integer.MAX_VALUE ) );
+	}
+}
@@ -0,0 +1,113 @@
+package com.furnaghan.exif.io;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.furnaghan.exif.jpeg.Marker;
+
+// Reads a source using only positional reads, so one source can be shared between any number of
+// readers. Small reads are served from a window to keep the number of calls to the source low.
+public class SourceReader {
+
+	private static final int WINDOW_SIZE = 4096;
+
+	private final SeekableByteSource source;
+	private final long size;
+	private final ByteBuffer window;
+	private long windowPosition;
+	private long position;
+
+	public SourceReader( final SeekableByteSource source, final long position )
+			throws IOException {
+		this.source = source;
+		this.size = source.size();
+		this.window = ByteBuffer.allocate( WINDOW_SIZE );
+		this.window.limit( 0 );
+		this.windowPosition = position;
+		this.position = position;
+	}
+
+	public long position() {
+		return position;
+	}
+
+	public boolean available() {
+		return position < size;
+	}
+
+	public void skip( final long length ) {
+		position += length;
+	}
+
+	public int readByte() throws IOException {
+		if ( position < windowPosition || position >= windowPosition + window.limit() ) {
+			fill();
+		}
+		return 0xff & window.get( (int) ( position++ - windowPosition ) );
+	}
+
+	public int readShort() throws IOException {
+		return ( readByte() << 8 ) | readByte();
+	}
+
+	public ByteBuffer readBuffer( final int length ) throws IOException {
+		final ByteBuffer bytes = ByteBuffer.allocate( length );
+
+		// Take whatever we already have in the window before going back to the source
+		final long buffered = windowPosition + window.limit() - position;
+		if ( position >= windowPosition && buffered > 0 ) {
+			final ByteBuffer view = window.duplicate();
+			view.position( (int) ( position - windowPosition ) );
+			view.limit( view.position() + (int) Math.min( buffered, length ) );
+			bytes.put( view );
+		}
+
+		readFully( bytes, position + bytes.position() );
+		position += length;
+
+		bytes.flip();
+		return bytes;
+	}
+
+	// Skips any fill bytes, or anything else which isn't a marker, up to the next marker
+	public Marker readMarker() throws IOException {
+		int previous = readByte();
+		int current = readByte();
+		while ( previous != 0xff || current == 0xff || current == 0 ) {
+			previous = current;
+			current = readByte();
+		}
+		final Marker marker = Marker.fromCode( current );
+		checkState( marker != null, "Unknown marker 0xFF%s", Integer.toHexString( current ) );
+		return marker;
+	}
+
+	private void fill() throws IOException {
+		window.clear();
+		windowPosition = position;
+		checkProgress( source.read( window, position ), position );
+		window.flip();
+	}
+
+	private void readFully( final ByteBuffer bytes, long offset ) throws IOException {
+		while ( bytes.hasRemaining() ) {
+			final int read = source.read( bytes, offset );
+			checkProgress( read, offset );
+			offset += read;
+		}
+	}
+
+	// A read which returns nothing before the end of the source would leave nothing to read
+	private static void checkProgress( final int read, final long offset ) throws IOException {
+		if ( read < 0 ) {
+			throw new EOFException();
+		}
+		if ( read == 0 ) {
+			throw new IOException( "No bytes read at position=" + offset
+					+ " before the end of the source" );
+		}
+	}
+}
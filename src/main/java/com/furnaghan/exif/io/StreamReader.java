@@ -5,9 +5,11 @@ import static com.google.common.base.Preconditions.checkState;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Map;
 
 import org.slf4j.Logger;
@@ -17,15 +19,17 @@ import com.furnaghan.exif.jpeg.Marker;
 import com.furnaghan.exif.math.Rational;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 
 public class StreamReader implements Closeable {
 
 	private static final Logger LOG = LoggerFactory.getLogger( StreamReader.class );
-	private static final Map<Integer, ByteOrder> BYTE_ORDERS = ImmutableMap.of( 0x4949,
+	static final Map<Integer, ByteOrder> BYTE_ORDERS = ImmutableMap.of( 0x4949,
 			ByteOrder.LITTLE_ENDIAN, 0x4D4D, ByteOrder.BIG_ENDIAN );
 
-	private final BufferedInputStream in;
+	private final CountingInputStream in;
 	private final boolean verbose;
+	private final byte[] scratch;
 	private ByteOrder byteOrder;
 
 	public StreamReader( final InputStream in, final ByteOrder byteOrder ) {
@@ -33,8 +37,9 @@ public class StreamReader implements Closeable {
 	}
 
 	public StreamReader( final InputStream in, final ByteOrder byteOrder, final boolean verbose ) {
-		this.in = new BufferedInputStream( in );
+		this.in = new CountingInputStream( new BufferedInputStream( in ) );
 		this.verbose = verbose;
+		this.scratch = new byte[8];
 		this.byteOrder = byteOrder;
 	}
 
@@ -46,6 +51,10 @@ public class StreamReader implements Closeable {
 		this.byteOrder = byteOrder;
 	}
 
+	public long position() {
+		return in.getCount();
+	}
+
 	public boolean available() throws IOException {
 		return in.available() > 0;
 	}
@@ -58,6 +67,10 @@ public class StreamReader implements Closeable {
 		return ByteStreams.limit( in, length );
 	}
 
+	public void skip( final long length ) throws IOException {
+		ByteStreams.skipFully( in, length );
+	}
+
 	public byte[] readBytes() throws IOException {
 		try ( final ByteArrayOutputStream out = new ByteArrayOutputStream() ) {
 			ByteStreams.copy( in, out );
@@ -78,37 +91,55 @@ public class StreamReader implements Closeable {
 		return bytes;
 	}
 
+	// Primitives are decoded from a reused scratch buffer rather than a fresh array per read
+	private byte[] readScratch( final int length ) throws IOException {
+		ByteStreams.readFully( in, scratch, 0, length );
+		if ( verbose ) {
+			LOG.error( "read: {}", Arrays.copyOf( scratch, length ) );
+		}
+		return scratch;
+	}
+
 	public int readShort() throws IOException {
-		return DataConversions.toShort( readBytes( 2 ), 0, byteOrder );
+		return DataConversions.toShort( readScratch( 2 ), 0, byteOrder );
 	}
 
 	public int readInt() throws IOException {
-		return DataConversions.toInt( readBytes( 4 ), 0, byteOrder );
+		return DataConversions.toInt( readScratch( 4 ), 0, byteOrder );
 	}
 
 	public Rational readRational() throws IOException {
-		return DataConversions.toRational( readBytes( 8 ), 0, byteOrder );
+		return DataConversions.toRational( readScratch( 8 ), 0, byteOrder );
 	}
 
 	public float readFloat() throws IOException {
-		return DataConversions.toFloat( readBytes( 4 ), 0, byteOrder );
+		return DataConversions.toFloat( readScratch( 4 ), 0, byteOrder );
 	}
 
 	public double readDouble() throws IOException {
-		return DataConversions.toDouble( readBytes( 8 ), 0, byteOrder );
+		return DataConversions.toDouble( readScratch( 8 ), 0, byteOrder );
 	}
 
 	public String readString( final int length ) throws IOException {
 		return DataConversions.toString( readBytes( length ) );
 	}
 
+	// The marker is nearly always next so both bytes are read at once, only falling back to
+	// reading a byte at a time to skip fill bytes or anything else which isn't a marker.
 	public Marker readMarker() throws IOException {
-		final byte[] markerBytes = new byte[2];
-		do {
-			markerBytes[0] = markerBytes[1];
-			markerBytes[1] = (byte) ( 0xff & in.read() );
-		} while ( ( 0xff & markerBytes[0] ) != 0xff || ( 0xff & markerBytes[1] ) == 0xff );
-		return Marker.fromId( DataConversions.toShort( markerBytes, 0, byteOrder ) );
+		ByteStreams.readFully( in, scratch, 0, 2 );
+		int previous = 0xff & scratch[0];
+		int current = 0xff & scratch[1];
+		while ( previous != 0xff || current == 0xff || current == 0 ) {
+			previous = current;
+			current = in.read();
+			if ( current < 0 ) {
+				throw new EOFException();
+			}
+		}
+		final Marker marker = Marker.fromCode( current );
+		checkState( marker != null, "Unknown marker 0xFF%s", Integer.toHexString( current ) );
+		return marker;
 	}
 
 	public ByteOrder readByteOrder() throws IOException {
@@ -6,16 +6,29 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.furnaghan.exif.Deadline;
+import com.furnaghan.exif.Diagnostic;
+import com.furnaghan.exif.Diagnostic.Code;
+import com.furnaghan.exif.io.BufferReader;
+import com.furnaghan.exif.io.ChannelByteSource;
+import com.furnaghan.exif.io.ChannelWriter;
+import com.furnaghan.exif.io.SeekableByteSource;
+import com.furnaghan.exif.io.SourceReader;
 import com.furnaghan.exif.io.StreamReader;
-import com.furnaghan.exif.io.StreamWriter;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 
@@ -25,30 +38,253 @@ public class JpegParser {
 		InputStream process( final Marker marker, final InputStream in ) throws IOException;
 	}
 
+	public interface SegmentVisitor {
+		// Returns false once no further segments are required
+		boolean visit( final Marker marker, final long offset, final ByteBuffer segment )
+				throws IOException;
+	}
+
 	private static final Logger LOG = LoggerFactory.getLogger( JpegParser.class );
 
 	private final SegmentProcessor processor;
 	private final Set<Marker> requiredSegments;
+	private final Set<Marker> processedSegments;
 
 	public JpegParser( final SegmentProcessor processor ) {
 		this( processor, Collections.<Marker>emptySet() );
 	}
 
 	public JpegParser( final SegmentProcessor processor, final Set<Marker> requiredSegments ) {
+		this( processor, requiredSegments, EnumSet.allOf( Marker.class ) );
+	}
+
+	// Only the processed segments are passed to the processor, any others are copied straight
+	// through without being read into memory
+	public JpegParser( final SegmentProcessor processor, final Set<Marker> requiredSegments,
+			final Set<Marker> processedSegments ) {
 		this.processor = processor;
 		this.requiredSegments = requiredSegments;
+		this.processedSegments = processedSegments;
+	}
+
+	public static void read( final ByteBuffer input, final Set<Marker> segments,
+			final SegmentVisitor visitor ) throws IOException {
+		read( input, segments, visitor, Deadline.NONE );
+	}
+
+	// The deadline is checked before each segment
+	public static void read( final ByteBuffer input, final Set<Marker> segments,
+			final SegmentVisitor visitor, final Deadline deadline ) throws IOException {
+		read( input, segments, visitor, deadline, null );
+	}
+
+	// Truncated or malformed segments are recorded in the diagnostics rather than thrown. The
+	// visitor is given whatever is left of a truncated segment before the walk stops.
+	public static void readLenient( final ByteBuffer input, final Set<Marker> segments,
+			final SegmentVisitor visitor, final Deadline deadline,
+			final List<Diagnostic> diagnostics ) throws IOException {
+		read( input, segments, visitor, deadline, diagnostics );
+	}
+
+	private static void read( final ByteBuffer input, final Set<Marker> segments,
+			final SegmentVisitor visitor, final Deadline deadline,
+			final List<Diagnostic> diagnostics ) throws IOException {
+		final BufferReader in = new BufferReader( input, ByteOrder.BIG_ENDIAN );
+
+		checkState( in.readShort() == Marker.SOI.getId(), "Not a JPEG" );
+
+		while ( in.available() ) {
+			deadline.check();
+			final int start = in.offset();
+			final Marker marker;
+			try {
+				marker = in.readMarker();
+			} catch ( final BufferUnderflowException e ) {
+				fail( diagnostics, new Diagnostic( Code.TRUNCATED, null, -1, start ) );
+				return;
+			} catch ( final IllegalStateException e ) {
+				fail( diagnostics, new Diagnostic( Code.INVALID_SEGMENT, null, -1, start ) );
+				return;
+			}
+			if ( marker == Marker.EOI || marker == Marker.SOS ) {
+				break;
+			}
+			if ( !marker.hasLength() ) {
+				continue;
+			}
+
+			if ( in.remaining() < 2 ) {
+				fail( diagnostics, new Diagnostic( Code.TRUNCATED, null, -1, in.offset() ) );
+				return;
+			}
+			final int length = in.readShort();
+			final int offset = in.offset();
+			if ( length < 2 ) {
+				fail( diagnostics, new Diagnostic( Code.INVALID_SEGMENT, null, -1, offset - 2 ) );
+				return;
+			}
+
+			// Whatever there is of a truncated segment is still worth reading
+			final boolean truncated = length - 2 > in.remaining();
+			if ( truncated ) {
+				fail( diagnostics, new Diagnostic( Code.TRUNCATED, null, -1, offset ) );
+			}
+
+			final ByteBuffer segment = in.readBuffer( Math.min( length - 2, in.remaining() ) );
+			if ( ( segments.contains( marker ) && !visitor.visit( marker, offset, segment ) )
+					|| truncated ) {
+				break;
+			}
+		}
+	}
+
+	// Thrown unless the problem can be recorded
+	private static void fail( final List<Diagnostic> diagnostics, final Diagnostic diagnostic ) {
+		if ( diagnostics == null ) {
+			throw new IllegalStateException( diagnostic.toString() );
+		}
+		diagnostics.add( diagnostic );
+	}
+
+	public static void read( final InputStream input, final Set<Marker> segments,
+			final SegmentVisitor visitor ) throws IOException {
+		read( input, segments, visitor, Deadline.NONE );
+	}
+
+	public static void read( final InputStream input, final Set<Marker> segments,
+			final SegmentVisitor visitor, final Deadline deadline ) throws IOException {
+		final StreamReader in = new StreamReader( input, ByteOrder.BIG_ENDIAN );
+
+		checkState( in.readShort() == Marker.SOI.getId(), "Not a JPEG" );
+
+		// Stop at the start of the image data, nothing after it is ever read
+		while ( in.available() ) {
+			deadline.check();
+			final Marker marker = in.readMarker();
+			if ( marker == Marker.EOI || marker == Marker.SOS ) {
+				break;
+			}
+			if ( !marker.hasLength() ) {
+				continue;
+			}
+
+			final int length = in.readShort();
+			checkState( length >= 2, "Invalid length=%s of %s segment", length, marker );
+			if ( !segments.contains( marker ) ) {
+				in.skip( length - 2 );
+				continue;
+			}
+
+			final long offset = in.position();
+			final ByteBuffer segment = ByteBuffer.wrap( in.readBytes( length - 2 ) );
+			if ( !visitor.visit( marker, offset, segment ) ) {
+				break;
+			}
+		}
+	}
+
+	public static void read( final FileChannel input, final Set<Marker> segments,
+			final SegmentVisitor visitor ) throws IOException {
+		read( input, segments, visitor, Deadline.NONE );
+	}
+
+	public static void read( final FileChannel input, final Set<Marker> segments,
+			final SegmentVisitor visitor, final Deadline deadline ) throws IOException {
+		read( new ChannelByteSource( input ), segments, visitor, deadline );
+	}
+
+	public static void read( final SeekableByteSource input, final Set<Marker> segments,
+			final SegmentVisitor visitor ) throws IOException {
+		read( input, segments, visitor, Deadline.NONE );
+	}
+
+	public static void read( final SeekableByteSource input, final Set<Marker> segments,
+			final SegmentVisitor visitor, final Deadline deadline ) throws IOException {
+		final SourceReader in = new SourceReader( input, 0 );
+
+		checkState( in.readShort() == Marker.SOI.getId(), "Not a JPEG" );
+
+		// Only the segment headers and the requested segments are ever fetched
+		while ( in.available() ) {
+			deadline.check();
+			final Marker marker = in.readMarker();
+			if ( marker == Marker.EOI || marker == Marker.SOS ) {
+				break;
+			}
+			if ( !marker.hasLength() ) {
+				continue;
+			}
+
+			final int length = in.readShort();
+			checkState( length >= 2, "Invalid length=%s of %s segment", length, marker );
+			if ( !segments.contains( marker ) ) {
+				in.skip( length - 2 );
+				continue;
+			}
+
+			final long offset = in.position();
+			final ByteBuffer segment = in.readBuffer( length - 2 );
+			if ( !visitor.visit( marker, offset, segment ) ) {
+				break;
+			}
+		}
 	}
 
 	public void process( final InputStream input, final OutputStream output ) throws IOException {
+		process( input, output, Deadline.NONE );
+	}
+
+	// The deadline is checked before each segment and before the image data is copied
+	public void process( final InputStream input, final OutputStream output,
+			final Deadline deadline ) throws IOException {
 		final StreamReader in = new StreamReader( input, ByteOrder.BIG_ENDIAN );
-		final StreamWriter out = new StreamWriter( output, ByteOrder.BIG_ENDIAN );
+		final ChannelWriter out = new ChannelWriter( Channels.newChannel( output ) );
+
+		final Marker marker = processSegments( in, out, deadline );
+		if ( marker != null ) {
+			processImage( out, marker, in.stream() );
+		}
+		out.flush();
+	}
+
+	public void process( final FileChannel input, final FileChannel output ) throws IOException {
+		process( input, output, Deadline.NONE );
+	}
+
+	public void process( final FileChannel input, final FileChannel output,
+			final Deadline deadline ) throws IOException {
+		process( input, new ChannelWriter( output ), deadline );
+	}
 
+	public void process( final FileChannel input, final ChannelWriter out ) throws IOException {
+		process( input, out, Deadline.NONE );
+	}
+
+	// The image data is copied verbatim by the kernel without passing through the processor
+	public void process( final FileChannel input, final ChannelWriter out,
+			final Deadline deadline ) throws IOException {
+		final StreamReader in = new StreamReader( Channels.newInputStream( input ),
+				ByteOrder.BIG_ENDIAN );
+
+		final Marker marker = processSegments( in, out, deadline );
+		if ( marker != null ) {
+			LOG.debug( "Transferring image data at segment {}", marker );
+			out.writeMarker( marker );
+			out.transfer( input, in.position() );
+		}
+		out.flush();
+	}
+
+	// Processes every segment up to the image data, returning the marker which starts it
+	private Marker processSegments( final StreamReader in, final ChannelWriter out,
+			final Deadline deadline ) throws IOException {
 		final Set<Marker> markers = new HashSet<>();
 
-		checkState( in.readMarker() == Marker.SOI );
+		checkState( in.readShort() == Marker.SOI.getId(), "Not a JPEG" );
 		out.writeMarker( Marker.SOI );
 
 		while ( in.available() ) {
+			deadline.check();
 			final Marker marker = in.readMarker();
 			markers.add( marker );
 
@@ -57,30 +293,48 @@ public class JpegParser {
 					processSegment( out, newMarker, new ByteArrayInputStream( new byte[0] ) );
 				}
 
-				processImage( out, marker, in.stream() );
-				break;
+				deadline.check();
+				return marker;
+			}
+			if ( !marker.hasLength() ) {
+				out.writeMarker( marker );
+				continue;
 			}
 
 			final int length = in.readShort();
-			processSegment( out, marker, in.limit( length - 2 ) );
+			checkState( length >= 2, "Invalid length=%s of %s segment", length, marker );
+			if ( !processedSegments.contains( marker ) ) {
+				out.writeMarker( marker );
+				out.writeShort( length );
+				out.writeStream( in.stream(), length - 2 );
+				continue;
+			}
+
+			// Skip whatever the processor left unread so the next marker is found
+			final InputStream segment = in.limit( length - 2 );
+			processSegment( out, marker, segment );
+			ByteStreams.copy( segment, ByteStreams.nullOutputStream() );
 		}
+
+		return null;
 	}
 
-	private void processSegment( final StreamWriter out, final Marker marker, final InputStream in )
-			throws IOException {
+	private void processSegment( final ChannelWriter out, final Marker marker,
+			final InputStream in ) throws IOException {
 		final byte[] bytes = ByteStreams.toByteArray( processor.process( marker, in ) );
 		if ( bytes.length > 0 ) {
-			LOG.info( "Writing {} bytes at segment {}", bytes.length, marker );
+			LOG.debug( "Writing {} bytes at segment {}", bytes.length, marker );
 			out.writeMarker( marker );
 			out.writeShort( bytes.length + 2 );
 			out.writeBytes( bytes );
 		}
 	}
 
-	private void processImage( final StreamWriter out, final Marker marker, final InputStream in )
-			throws IOException {
-		final InputStream bytes = processor.process( marker, in );
-		LOG.info( "Writing stream of bytes at segment {}", marker );
+	private void processImage( final ChannelWriter out, final Marker marker,
+			final InputStream in ) throws IOException {
+		final InputStream bytes = processedSegments.contains( marker ) ? processor.process(
+				marker, in ) : in;
+		LOG.debug( "Writing stream of bytes at segment {}", marker );
 		out.writeMarker( marker );
 		out.writeStream( bytes );
 	}
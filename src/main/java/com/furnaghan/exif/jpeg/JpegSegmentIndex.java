@@ -0,0 +1,180 @@
+package com.furnaghan.exif.jpeg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.furnaghan.exif.io.BufferReader;
+import com.furnaghan.exif.io.ChannelByteSource;
+import com.furnaghan.exif.io.SeekableByteSource;
+import com.furnaghan.exif.io.SourceReader;
+import com.google.common.base.Optional;
+
+// The segments of an image up to the start of the image data, found in a single pass reading only
+// the segment headers. Any segment can then be read directly, and the index can be cached.
+public class JpegSegmentIndex implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static JpegSegmentIndex build( final FileChannel input ) throws IOException {
+		return build( new ChannelByteSource( input ) );
+	}
+
+	public static JpegSegmentIndex build( final SeekableByteSource input ) throws IOException {
+		final SourceReader in = new SourceReader( input, 0 );
+		final List<Segment> segments = new ArrayList<>();
+
+		checkState( in.readShort() == Marker.SOI.getId(), "Not a JPEG" );
+
+		while ( in.available() ) {
+			final Marker marker = in.readMarker();
+			if ( marker == Marker.EOI || marker == Marker.SOS ) {
+				return new JpegSegmentIndex( segments, marker == Marker.SOS ? in.position() - 2
+						: -1 );
+			}
+			if ( !marker.hasLength() ) {
+				continue;
+			}
+
+			final int length = in.readShort();
+			checkState( length >= 2, "Invalid length=%s of %s segment", length, marker );
+			segments.add( new Segment( marker, in.position(), length - 2 ) );
+			in.skip( length - 2 );
+		}
+		return new JpegSegmentIndex( segments, -1 );
+	}
+
+	public static JpegSegmentIndex build( final ByteBuffer input ) {
+		final BufferReader in = new BufferReader( input, ByteOrder.BIG_ENDIAN );
+		final List<Segment> segments = new ArrayList<>();
+
+		checkState( in.readShort() == Marker.SOI.getId(), "Not a JPEG" );
+
+		while ( in.available() ) {
+			final Marker marker = in.readMarker();
+			if ( marker == Marker.EOI || marker == Marker.SOS ) {
+				return new JpegSegmentIndex( segments, marker == Marker.SOS ? in.offset() - 2
+						: -1 );
+			}
+			if ( !marker.hasLength() ) {
+				continue;
+			}
+
+			final int length = in.readShort();
+			checkState( length >= 2, "Invalid length=%s of %s segment", length, marker );
+			segments.add( new Segment( marker, in.offset(), length - 2 ) );
+			in.seek( in.offset() + length - 2 );
+		}
+		return new JpegSegmentIndex( segments, -1 );
+	}
+
+	private final List<Segment> segments;
+	private final long imageDataOffset;
+
+	private JpegSegmentIndex( final List<Segment> segments, final long imageDataOffset ) {
+		this.segments = segments;
+		this.imageDataOffset = imageDataOffset;
+	}
+
+	public List<Segment> getSegments() {
+		return Collections.unmodifiableList( segments );
+	}
+
+	public List<Segment> getSegments( final Marker marker ) {
+		final List<Segment> matching = new ArrayList<>();
+		for ( final Segment segment : segments ) {
+			if ( segment.marker == marker ) {
+				matching.add( segment );
+			}
+		}
+		return matching;
+	}
+
+	public Optional<Segment> getFirst( final Marker marker ) {
+		for ( final Segment segment : segments ) {
+			if ( segment.marker == marker ) {
+				return Optional.of( segment );
+			}
+		}
+		return Optional.absent();
+	}
+
+	// The offset of the SOS marker which starts the image data, or -1 if there is none
+	public long getImageDataOffset() {
+		return imageDataOffset;
+	}
+
+	public ByteBuffer read( final Segment segment, final FileChannel input ) throws IOException {
+		return read( segment, new ChannelByteSource( input ) );
+	}
+
+	public ByteBuffer read( final Segment segment, final SeekableByteSource input )
+			throws IOException {
+		final ByteBuffer bytes = ByteBuffer.allocate( segment.length );
+		while ( bytes.hasRemaining() ) {
+			if ( input.read( bytes, segment.offset + bytes.position() ) < 0 ) {
+				throw new EOFException();
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+
+	// A view of the segment within the whole image, nothing is copied
+	public ByteBuffer slice( final Segment segment, final ByteBuffer input ) {
+		checkArgument( segment.offset + segment.length <= input.remaining(),
+				"%s is outside the buffer", segment );
+		final ByteBuffer bytes = input.duplicate();
+		bytes.position( input.position() + (int) segment.offset );
+		bytes.limit( bytes.position() + segment.length );
+		return bytes.slice();
+	}
+
+	@Override
+	public String toString() {
+		return "JpegSegmentIndex{segments=" + segments + ", imageDataOffset=" + imageDataOffset
+				+ "}";
+	}
+
+	public static class Segment implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Marker marker;
+		private final long offset;
+		private final int length;
+
+		private Segment( final Marker marker, final long offset, final int length ) {
+			this.marker = marker;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public Marker getMarker() {
+			return marker;
+		}
+
+		// The offset of the segment data, just after its length
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return marker + "@" + offset + "+" + length;
+		}
+	}
+}
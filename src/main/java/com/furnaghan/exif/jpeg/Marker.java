@@ -1,16 +1,30 @@
 package com.furnaghan.exif.jpeg;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public enum Marker {
 	SOI( 0xFFD8, "Start Of Image" ),
 	SOF0( 0xFFC0, "Start Of Frame (Baseline DCT)" ),
+	SOF1( 0xFFC1, "Start Of Frame (Extended Sequential DCT)" ),
 	SOF2( 0xFFC2, "Start Of Frame (Progressive DCT)" ),
+	SOF3( 0xFFC3, "Start Of Frame (Lossless)" ),
+	SOF5( 0xFFC5, "Start Of Frame (Differential Sequential DCT)" ),
+	SOF6( 0xFFC6, "Start Of Frame (Differential Progressive DCT)" ),
+	SOF7( 0xFFC7, "Start Of Frame (Differential Lossless)" ),
+	SOF9( 0xFFC9, "Start Of Frame (Extended Sequential DCT, Arithmetic)" ),
+	SOF10( 0xFFCA, "Start Of Frame (Progressive DCT, Arithmetic)" ),
+	SOF11( 0xFFCB, "Start Of Frame (Lossless, Arithmetic)" ),
+	SOF13( 0xFFCD, "Start Of Frame (Differential Sequential DCT, Arithmetic)" ),
+	SOF14( 0xFFCE, "Start Of Frame (Differential Progressive DCT, Arithmetic)" ),
+	SOF15( 0xFFCF, "Start Of Frame (Differential Lossless, Arithmetic)" ),
+	JPG( 0xFFC8, "Reserved for JPEG extensions" ),
 	DHT( 0xFFC4, "Define Huffman Table(s)" ),
+	DAC( 0xFFCC, "Define Arithmetic Coding Conditioning(s)" ),
 	DQT( 0xFFDB, "Define Quantization Table(s)" ),
+	DNL( 0xFFDC, "Define Number of Lines" ),
 	DRI( 0xFFDD, "Define Restart Interval" ),
+	DHP( 0xFFDE, "Define Hierarchical Progression" ),
+	EXP( 0xFFDF, "Expand Reference Component(s)" ),
 	SOS( 0xFFDA, "Start Of Scan" ),
+	TEM( 0xFF01, "Temporary" ),
 	RST0( 0xFFD0, "Restart 0" ),
 	RST1( 0xFFD1, "Restart 1" ),
 	RST2( 0xFFD2, "Restart 2" ),
@@ -35,34 +49,62 @@ public enum Marker {
 	APP13( 0xFFED, "Adobe Photoshop" ),
 	APP14( 0xFFEE, "" ),
 	APP15( 0xFFEF, "" ),
+	JPG0( 0xFFF0, "Reserved for JPEG extensions" ),
+	JPG1( 0xFFF1, "Reserved for JPEG extensions" ),
+	JPG2( 0xFFF2, "Reserved for JPEG extensions" ),
+	JPG3( 0xFFF3, "Reserved for JPEG extensions" ),
+	JPG4( 0xFFF4, "Reserved for JPEG extensions" ),
+	JPG5( 0xFFF5, "Reserved for JPEG extensions" ),
+	JPG6( 0xFFF6, "Reserved for JPEG extensions" ),
+	JPG7( 0xFFF7, "Reserved for JPEG extensions" ),
+	JPG8( 0xFFF8, "Reserved for JPEG extensions" ),
+	JPG9( 0xFFF9, "Reserved for JPEG extensions" ),
+	JPG10( 0xFFFA, "Reserved for JPEG extensions" ),
+	JPG11( 0xFFFB, "Reserved for JPEG extensions" ),
+	JPG12( 0xFFFC, "Reserved for JPEG extensions" ),
+	JPG13( 0xFFFD, "Reserved for JPEG extensions" ),
 	COM( 0xFFFE, "Comment" ),
 	EOI( 0xFFD9, "End Of Image" ),
 	;
 
-	private static final Map<Integer, Marker> byId = new HashMap<>();
+	// Indexed by the second byte of the marker, the codes with no marker are left null
+	private static final Marker[] BY_CODE = new Marker[256];
 
 	static {
 		for ( final Marker marker : Marker.values() ) {
-			byId.put( marker.id, marker );
+			BY_CODE[0xff & marker.id] = marker;
 		}
 	}
 
 	public static Marker fromId( final int id ) {
-		return byId.get( id );
+		return ( id & 0xFF00 ) == 0xFF00 ? BY_CODE[0xff & id] : null;
+	}
+
+	// The marker for the byte following 0xFF, or null if it is reserved
+	public static Marker fromCode( final int code ) {
+		return BY_CODE[0xff & code];
 	}
 
 	private final int id;
 	private final String description;
+	private final boolean standalone;
 
 	Marker( final int id, final String description ) {
 		this.id = id;
 		this.description = description;
+
+		// SOI, EOI, the restart markers and TEM are not followed by a length or any data
+		this.standalone = id == 0xFF01 || ( id >= 0xFFD0 && id <= 0xFFD9 );
 	}
 
 	public int getId() {
 		return id;
 	}
 
+	public boolean hasLength() {
+		return !standalone;
+	}
+
 	@Override
 	public String toString() {
 		return String.format( "%s (%s)", name(), description );
@@ -0,0 +1,11 @@
+package com.furnaghan.exif.parser;
+
+// How much of an update is forced to disk before it is considered committed
+public enum Durability {
+	// Leave it to the operating system to write back
+	NONE,
+	// Force the file contents before it replaces the original
+	FILE,
+	// Also force the directory so the rename itself survives a crash
+	FILE_AND_DIRECTORY
+}
@@ -1,27 +1,38 @@
 package com.furnaghan.exif.parser;
 
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.furnaghan.exif.Deadline;
+import com.furnaghan.exif.Diagnostic;
+import com.furnaghan.exif.Diagnostic.Code;
 import com.furnaghan.exif.ExifTagReference;
 import com.furnaghan.exif.ExifTags;
 import com.furnaghan.exif.ImageFileDirectory;
-import com.furnaghan.exif.io.NoopOutputStream;
+import com.furnaghan.exif.io.ChannelByteSource;
+import com.furnaghan.exif.io.CoalescingByteSource;
+import com.furnaghan.exif.io.SeekableByteSource;
 import com.furnaghan.exif.jpeg.JpegParser;
 import com.furnaghan.exif.jpeg.Marker;
 import com.furnaghan.exif.tag.Exif;
@@ -29,8 +40,12 @@ import com.furnaghan.exif.tag.GPSInfo;
 import com.furnaghan.exif.tag.Image;
 import com.furnaghan.exif.tag.Iop;
 import com.furnaghan.exif.tag.Thumbnail;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
 
 public class ExifParser {
 
@@ -38,6 +53,7 @@ public class ExifParser {
 
 	static final String EXIF_NAME = "Exif";
 	static final int TIFF_MARKER = 0x002A;
+	static final int MAX_SEGMENT_LENGTH = 0xFFFF - 2;
 
 	// @formatter:off
 	static final Map<ExifTagReference, ImageFileDirectory> IFD_TAGS = ImmutableMap.of(
@@ -70,63 +86,388 @@ public class ExifParser {
 	}
 
 	public static ExifTags read( final File file ) throws IOException {
-		try ( final InputStream in = new FileInputStream( file ) ) {
-			return read( in );
-		}
+		return read( file, false );
 	}
 
-	public static ExifTags read( final InputStream in ) throws IOException {
-		final AtomicReference<ExifTags> exif = new AtomicReference<>( ExifTags.empty() );
+	// When lazy, each value is decoded from the mapped file the first time its tag is accessed.
+	// The tags and their thumbnails then keep the file mapped, so it mustn't be modified.
+	public static ExifTags read( final File file, final boolean lazy ) throws IOException {
+		return read( file, lazy, null, false, ParseBudget.DEFAULT );
+	}
 
-		// Process the image, discarding the output
-		new JpegParser( new JpegParser.SegmentProcessor() {
-			@Override
-			public InputStream process( final Marker marker, final InputStream in ) {
-				if ( EXIF_MARKERS.contains( marker ) ) {
+	// Only the given tags are decoded, skipping any IFDs which can't contain them
+	public static ExifTags read( final File file,
+			final Set<? extends Supplier<ExifTagReference>> tags ) throws IOException {
+		return read( file, false, ExifReader.references( tags ), false, ParseBudget.DEFAULT );
+	}
+
+	// Throws a ParseBudgetExceededException as soon as the data needs more reading than the budget
+	// allows, rather than passing over the segment
+	public static ExifTags read( final File file, final ParseBudget budget ) throws IOException {
+		return read( file, false, null, false, budget );
+	}
+
+	// Problems with the data are recorded on the returned tags, see ExifTags.getDiagnostics()
+	public static ExifTags readLenient( final File file ) throws IOException {
+		return read( file, false, null, true, ParseBudget.DEFAULT );
+	}
+
+	public static ExifTags readLenient( final File file, final ParseBudget budget )
+			throws IOException {
+		return read( file, false, null, true, budget );
+	}
+
+	private static ExifTags read( final File file, final boolean lazy,
+			final Set<ExifTagReference> projection, final boolean lenient,
+			final ParseBudget budget ) throws IOException {
+		try ( final FileChannel channel = FileChannel.open( file.toPath(),
+				StandardOpenOption.READ ) ) {
+			// Map the file rather than reading it, only the pages we touch are loaded
+			return read( map( file, channel ), lazy, projection, lenient, budget );
+		}
+	}
+
+	// Walks the exif data of the file, see ExifReader.read( ByteBuffer, ExifVisitor )
+	public static void read( final File file, final ExifVisitor visitor ) throws IOException {
+		try ( final FileChannel channel = FileChannel.open( file.toPath(),
+				StandardOpenOption.READ ) ) {
+			final ByteBuffer buffer = map( file, channel );
+			if ( checkFormat( ImageFormat.sniff( buffer ) ) == ImageFormat.TIFF ) {
+				ExifReader.readTiff( buffer, visitor );
+				return;
+			}
+			JpegParser.read( buffer, EXIF_MARKERS, new JpegParser.SegmentVisitor() {
+				@Override
+				public boolean visit( final Marker marker, final long offset,
+						final ByteBuffer segment ) throws IOException {
 					try {
-						exif.set( ExifReader.read( in ) );
-					} catch ( final Exception e ) {
+						ExifReader.read( segment, visitor );
+						return false;
+					} catch ( final ParseBudgetExceededException e ) {
+						throw e;
+					} catch ( final RuntimeException e ) {
 						LOG.warn( "Failed to read exif segment: {}", marker, e );
+						return true;
 					}
 				}
-				return in;
+			} );
+		}
+	}
+
+	// A view over the exif data of the file, answering lookups without parsing it up front
+	public static Optional<ExifView> view( final File file ) throws IOException {
+		try ( final FileChannel channel = FileChannel.open( file.toPath(),
+				StandardOpenOption.READ ) ) {
+			return view( map( file, channel ) );
+		}
+	}
+
+	// A single mapping only covers 2GB, anything larger must be read through a SeekableByteSource
+	private static ByteBuffer map( final File file, final FileChannel channel )
+			throws IOException {
+		final long size = channel.size();
+		if ( size > Integer.MAX_VALUE ) {
+			throw new IOException( "Unable to map " + file + " of " + size
+					+ " bytes, read it with read( FileChannel ) instead" );
+		}
+		return channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+	}
+
+	public static Optional<ExifView> view( final ByteBuffer buffer ) throws IOException {
+		if ( checkFormat( ImageFormat.sniff( buffer ) ) == ImageFormat.TIFF ) {
+			return Optional.of( ExifView.ofTiff( buffer ) );
+		}
+
+		final List<ExifView> views = new ArrayList<>( 1 );
+		JpegParser.read( buffer, EXIF_MARKERS, new JpegParser.SegmentVisitor() {
+			@Override
+			public boolean visit( final Marker marker, final long offset,
+					final ByteBuffer segment ) {
+				try {
+					views.add( ExifView.of( segment ) );
+					return false;
+				} catch ( final RuntimeException e ) {
+					LOG.warn( "Failed to read exif segment: {}", marker, e );
+					return true;
+				}
+			}
+		} );
+		return Optional.fromNullable( Iterables.getFirst( views, null ) );
+	}
+
+	public static ExifTags read( final Path path ) throws IOException {
+		try ( final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) ) {
+			return read( channel );
+		}
+	}
+
+	// Safe to call concurrently on a shared channel, only positional reads are used
+	public static ExifTags read( final FileChannel channel ) throws IOException {
+		return read( new ChannelByteSource( channel ) );
+	}
+
+	// Reads are coalesced into a few range requests covering only the start of the image, so
+	// this suits sources where each request is expensive such as remote storage.
+	public static ExifTags read( final SeekableByteSource source ) throws IOException {
+		return read( source, ParseBudget.DEFAULT );
+	}
+
+	// The budget's deadline is checked between requests, a single request isn't interrupted
+	public static ExifTags read( final SeekableByteSource source, final ParseBudget budget )
+			throws IOException {
+		final SeekableByteSource coalescing = new CoalescingByteSource( source );
+		if ( checkFormat( ImageFormat.sniff( coalescing ) ) == ImageFormat.TIFF ) {
+			return ExifReader.readTiff( coalescing, budget );
+		}
+
+		final ExifSegmentVisitor visitor = new ExifSegmentVisitor( false, null, false,
+				budget );
+		JpegParser.read( coalescing, EXIF_MARKERS, visitor, budget.getDeadline() );
+		return visitor.exif;
+	}
+
+	public static ExifTags read( final byte[] bytes, final int offset, final int length )
+			throws IOException {
+		return read( ByteBuffer.wrap( bytes, offset, length ) );
+	}
+
+	// Reads directly from the buffer without copying it, the buffer itself is never modified
+	// so it may be shared between threads.
+	public static ExifTags read( final ByteBuffer buffer ) throws IOException {
+		return read( buffer, false );
+	}
+
+	public static ExifTags read( final ByteBuffer buffer, final boolean lazy ) throws IOException {
+		return read( buffer, lazy, null, false, ParseBudget.DEFAULT );
+	}
+
+	public static ExifTags readLenient( final ByteBuffer buffer ) throws IOException {
+		return read( buffer, false, null, true, ParseBudget.DEFAULT );
+	}
+
+	public static ExifTags readLenient( final ByteBuffer buffer, final ParseBudget budget )
+			throws IOException {
+		return read( buffer, false, null, true, budget );
+	}
+
+	private static ExifTags read( final ByteBuffer buffer, final boolean lazy,
+			final Set<ExifTagReference> projection, final boolean lenient,
+			final ParseBudget budget ) throws IOException {
+		final ImageFormat format = ImageFormat.sniff( buffer );
+		if ( lenient && format == ImageFormat.UNKNOWN ) {
+			return ExifTags.empty().addDiagnostic( new Diagnostic( Code.UNSUPPORTED_FORMAT, null,
+					-1, -1 ) );
+		}
+		if ( checkFormat( format ) == ImageFormat.TIFF ) {
+			return ExifReader.readTiff( buffer, lazy, projection, lenient, budget );
+		}
+
+		final ExifSegmentVisitor visitor = new ExifSegmentVisitor( lazy, projection, lenient,
+				budget );
+		if ( !lenient ) {
+			JpegParser.read( buffer, EXIF_MARKERS, visitor, budget.getDeadline() );
+			return visitor.exif;
+		}
+
+		final List<Diagnostic> diagnostics = new ArrayList<>();
+		JpegParser.readLenient( buffer, EXIF_MARKERS, visitor, budget.getDeadline(),
+				diagnostics );
+		for ( final Diagnostic diagnostic : diagnostics ) {
+			visitor.exif.addDiagnostic( diagnostic );
+		}
+		return visitor.exif;
+	}
+
+	public static ExifTags read( final InputStream in ) throws IOException {
+		return read( in, ParseBudget.DEFAULT );
+	}
+
+	// Cancelling the budget's deadline closes the stream, waking a read stuck waiting on it
+	public static ExifTags read( final InputStream input, final ParseBudget budget )
+			throws IOException {
+		final Deadline deadline = budget.getDeadline();
+		deadline.register( input );
+		try {
+			final InputStream in = input.markSupported() ? input
+					: new BufferedInputStream( input );
+			if ( checkFormat( ImageFormat.sniff( in ) ) == ImageFormat.TIFF ) {
+				return ExifReader.readTiff( in, budget );
 			}
-		}, EXIF_MARKERS ).process( in, new NoopOutputStream() );
 
-		return exif.get();
+			// Only the segments up to the exif data are read, the image itself is never touched
+			final ExifSegmentVisitor visitor = new ExifSegmentVisitor( false, null, false,
+					budget );
+			JpegParser.read( in, EXIF_MARKERS, visitor, deadline );
+			return visitor.exif;
+		} finally {
+			deadline.unregister( input );
+		}
+	}
+
+	// Anything other than a JPEG or TIFF is rejected from its first few bytes
+	private static ImageFormat checkFormat( final ImageFormat format ) {
+		checkState( format != ImageFormat.UNKNOWN, "Unsupported image format" );
+		return format;
 	}
 
 	public static void update( final File file, final Updater updater ) throws IOException {
-		final Path tempFile = Files.createTempFile( "exif", "jpg" );
-		try ( final InputStream in = new FileInputStream( file ) ) {
-			try ( final OutputStream out = new FileOutputStream( tempFile.toFile() ) ) {
-				update( in, out, updater );
+		update( file, updater, 0 );
+	}
+
+	public static void update( final File file, final Updater updater, final int padding )
+			throws IOException {
+		update( file, updater, padding, Durability.NONE );
+	}
+
+	// The image is always rewritten, reserving padding bytes for future in place updates
+	public static void update( final File file, final Updater updater, final int padding,
+			final Durability durability ) throws IOException {
+		update( file, updater, padding, durability, Deadline.NONE );
+	}
+
+	// Once the deadline passes the update stops, removing anything it staged. The deadline is only
+	// checked before anything is written, once the file is being replaced that runs to the end.
+	public static void update( final File file, final Updater updater, final int padding,
+			final Durability durability, final Deadline deadline ) throws IOException {
+		try ( final UpdateBatch batch = new UpdateBatch( durability, deadline, false ) ) {
+			batch.update( file, updater, padding );
+			batch.commit();
+		}
+	}
+
+	public static void updateInPlace( final File file, final Updater updater ) throws IOException {
+		updateInPlace( file, updater, 0, Durability.FILE, Deadline.NONE );
+	}
+
+	// When the new exif data fits in the existing segment only that segment is overwritten, saving
+	// a copy of the image. Unlike a rewrite this isn't crash safe, a crash part way through the
+	// write leaves the segment corrupt.
+	public static void updateInPlace( final File file, final Updater updater, final int padding,
+			final Durability durability, final Deadline deadline ) throws IOException {
+		try ( final UpdateBatch batch = new UpdateBatch( durability, deadline, true ) ) {
+			batch.update( file, updater, padding );
+			batch.commit();
+		}
+	}
+
+	// Holds on to the new exif segment if it is allowed to and fits in place, otherwise writes the
+	// updated image to a staging file beside the target, on the same filesystem, so it can later
+	// be renamed over it. The target itself is never written.
+	static UpdateBatch.Staged stage( final Path target, final Updater updater, final int padding,
+			final boolean inPlace, final Deadline deadline ) throws IOException {
+		final ExifTags exif;
+		try ( final FileChannel channel = FileChannel.open( target, StandardOpenOption.READ ) ) {
+			final ExifSegmentVisitor visitor = new ExifSegmentVisitor( false, null, false,
+					ParseBudget.DEFAULT.withDeadline( deadline ) );
+			JpegParser.read( channel, EXIF_MARKERS, visitor, deadline );
+
+			if ( visitor.length < 0 ) {
+				// No existing exif segment to update
+				return UpdateBatch.Staged.rewritten( rewrite( target, channel, updater, padding,
+						deadline ) );
+			}
+
+			exif = updater.update( visitor.exif );
+			final byte[] bytes = encode( exif, 0 );
+			deadline.check();
+			if ( inPlace && bytes.length <= visitor.length ) {
+				LOG.info( "Staging {} byte exif segment to update in place at {}", visitor.length,
+						visitor.offset );
+				return UpdateBatch.Staged.inPlace( visitor.offset, Arrays.copyOf( bytes,
+						visitor.length ) );
 			}
+
+			return UpdateBatch.Staged.rewritten( rewrite( target, channel, new Updater() {
+				@Override
+				public ExifTags update( final ExifTags existingTags ) {
+					return exif;
+				}
+			}, padding, deadline ) );
+		}
+	}
+
+	private static Path rewrite( final Path target, final FileChannel in, final Updater updater,
+			final int padding, final Deadline deadline ) throws IOException {
+		final Path staging = Files.createTempFile( target.getParent(),
+				"." + target.getFileName() + ".", ".tmp" );
+		try {
+			copyPermissions( target, staging );
+			try ( final FileChannel out = FileChannel.open( staging, StandardOpenOption.WRITE ) ) {
+				// Cancelling closes the staging file, stopping even a long copy of the image data
+				deadline.register( out );
+				try {
+					in.position( 0 );
+					updateParser( updater, padding, deadline ).process( in, out, deadline );
+				} finally {
+					deadline.unregister( out );
+				}
+			}
+			return staging;
+		} catch ( final IOException | RuntimeException e ) {
+			Files.deleteIfExists( staging );
+			throw e;
+		}
+	}
+
+	// Temp files are created owner only, keep the original permissions once it is replaced
+	private static void copyPermissions( final Path source, final Path target )
+			throws IOException {
+		try {
+			Files.setPosixFilePermissions( target, Files.getPosixFilePermissions( source ) );
+		} catch ( final UnsupportedOperationException e ) {
+			LOG.debug( "Unable to copy permissions to {}", target, e );
 		}
-		Files.move( tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING );
 	}
 
 	public static void update( final InputStream in, final OutputStream out, final Updater updater )
 			throws IOException {
-		// Process the image, discarding the output
-		new JpegParser( new JpegParser.SegmentProcessor() {
+		update( in, out, updater, Deadline.NONE );
+	}
+
+	// Cancelling the deadline closes the input, waking an update stuck waiting on it
+	public static void update( final InputStream in, final OutputStream out, final Updater updater,
+			final Deadline deadline ) throws IOException {
+		deadline.register( in );
+		try {
+			updateParser( updater, 0, deadline ).process( in, out, deadline );
+		} finally {
+			deadline.unregister( in );
+		}
+	}
+
+	// Only the exif segments are handed to the processor, everything else is copied through
+	private static JpegParser updateParser( final Updater updater, final int padding,
+			final Deadline deadline ) {
+		return new JpegParser( new JpegParser.SegmentProcessor() {
 			@Override
-			public InputStream process( final Marker marker, final InputStream in ) {
-				if ( EXIF_MARKERS.contains( marker ) ) {
-					try {
-						final ExifTags exif = updater.update( ExifReader.read( in ) );
-						try ( final ByteArrayOutputStream exifOut = new ByteArrayOutputStream() ) {
-							final ExifWriter writer = new ExifWriter( exifOut );
-							writer.write( exif );
-							return new ByteArrayInputStream( exifOut.toByteArray() );
-						}
-					} catch ( final Exception e ) {
-						LOG.warn( "Failed to process exif segment: {}", marker, e );
-					}
+			public InputStream process( final Marker marker, final InputStream in )
+					throws IOException {
+				// Hold on to the original bytes so segments which aren't exif are kept
+				final byte[] bytes = ByteStreams.toByteArray( in );
+				try {
+					final ExifTags exif = updater.update( ExifReader.read( ByteBuffer.wrap( bytes ),
+							ParseBudget.DEFAULT.withDeadline( deadline ) ) );
+					return new ByteArrayInputStream( encode( exif, padding ) );
+				} catch ( final InterruptedIOException | ParseBudgetExceededException e ) {
+					throw e;
+				} catch ( final Exception e ) {
+					LOG.warn( "Failed to process exif segment: {}", marker, e );
 				}
-				return in;
+				return new ByteArrayInputStream( bytes );
 			}
-		}, EXIF_MARKERS ).process( in, out );
+		}, EXIF_MARKERS, EXIF_MARKERS );
+	}
+
+	// Encodes the exif data followed by up to padding zero bytes
+	private static byte[] encode( final ExifTags exif, final int padding ) throws IOException {
+		try ( final ByteArrayOutputStream out = new ByteArrayOutputStream() ) {
+			final ExifWriter writer = new ExifWriter( out );
+			writer.write( exif );
+
+			final byte[] bytes = out.toByteArray();
+			return Arrays.copyOf( bytes, Math.max( bytes.length,
+					Math.min( bytes.length + padding, MAX_SEGMENT_LENGTH ) ) );
+		}
 	}
 
 	public static void write( final InputStream in, final OutputStream out, final ExifTags newTags )
@@ -151,4 +492,45 @@ public class ExifParser {
 	public interface Updater {
 		ExifTags update( final ExifTags tags );
 	}
+
+	private static class ExifSegmentVisitor implements JpegParser.SegmentVisitor {
+		private final boolean lazy;
+		private final Set<ExifTagReference> projection;
+		private final boolean lenient;
+		private final ParseBudget budget;
+		private ExifTags exif = ExifTags.empty();
+		private long offset = -1;
+		private int length = -1;
+
+		private ExifSegmentVisitor( final boolean lazy, final Set<ExifTagReference> projection,
+				final boolean lenient, final ParseBudget budget ) {
+			this.lazy = lazy;
+			this.projection = projection;
+			this.lenient = lenient;
+			this.budget = budget;
+		}
+
+		@Override
+		public boolean visit( final Marker marker, final long offset, final ByteBuffer segment )
+				throws IOException {
+			// Other APP1 segments, such as XMP, aren't a problem so are passed over quietly
+			if ( lenient && !ExifReader.isExif( segment ) ) {
+				return true;
+			}
+
+			try {
+				final int length = segment.remaining();
+				exif = ExifReader.read( segment, lazy, projection, lenient, budget );
+				this.offset = offset;
+				this.length = length;
+				// Stop as soon as we have the exif data
+				return false;
+			} catch ( final InterruptedIOException | ParseBudgetExceededException e ) {
+				throw e;
+			} catch ( final Exception e ) {
+				LOG.warn( "Failed to read exif segment: {}", marker, e );
+				return true;
+			}
+		}
+	}
 }
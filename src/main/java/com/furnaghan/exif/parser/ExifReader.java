@@ -2,119 +2,790 @@ package com.furnaghan.exif.parser;
 
 import static com.furnaghan.exif.parser.ExifParser.EXIF_NAME;
 import static com.furnaghan.exif.parser.ExifParser.IFD_TAGS;
+import static com.furnaghan.exif.parser.ExifParser.MAX_SEGMENT_LENGTH;
 import static com.furnaghan.exif.parser.ExifParser.TIFF_MARKER;
 import static com.furnaghan.exif.parser.ExifParser.VERBOSE;
 import static com.google.common.base.Preconditions.checkState;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.furnaghan.exif.Diagnostic;
+import com.furnaghan.exif.Diagnostic.Code;
 import com.furnaghan.exif.ExifTagData;
 import com.furnaghan.exif.ExifTagReference;
 import com.furnaghan.exif.ExifTags;
+import com.furnaghan.exif.ExifThumbnail;
 import com.furnaghan.exif.ImageFileDirectory;
+import com.furnaghan.exif.io.BufferReader;
+import com.furnaghan.exif.io.FieldType;
+import com.furnaghan.exif.io.SeekableByteSource;
+import com.furnaghan.exif.io.SourceInputStream;
 import com.furnaghan.exif.io.StreamReader;
 import com.furnaghan.exif.tag.Thumbnail;
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 
 public class ExifReader {
 
 	private static final Logger LOG = LoggerFactory.getLogger( ExifReader.class );
 
+	private static final int ENTRY_SIZE = 12;
+	private static final int HEAD_LENGTH = 64 * 1024;
+
 	public static ExifTags read( final InputStream in ) throws IOException {
-		final StreamReader data = new StreamReader( in, ByteOrder.BIG_ENDIAN, VERBOSE );
+		return read( in, ParseBudget.DEFAULT );
+	}
+
+	// An exif segment is at most 64KB so it is read into memory and walked like a buffer, leaving
+	// the IFDs and values free to be stored in any order.
+	public static ExifTags read( final InputStream in, final ParseBudget budget )
+			throws IOException {
+		final byte[] segment = ByteStreams.toByteArray( ByteStreams.limit( in,
+				MAX_SEGMENT_LENGTH ) );
+		return read( ByteBuffer.wrap( segment ), false, null, false, budget );
+	}
+
+	// Reads a TIFF file, or any format built on one, resolving every IFD and value in a single
+	// forward pass. Only the start of the file is kept in memory, anything read past it is spilled
+	// to a temporary file so data stored before what has already been read can still be reached.
+	public static ExifTags readTiff( final InputStream in ) throws IOException {
+		return readTiff( in, ParseBudget.DEFAULT );
+	}
+
+	public static ExifTags readTiff( final InputStream in, final ParseBudget budget )
+			throws IOException {
+		// The start of the file is kept as many writers put their IFDs there, often before an
+		// IFD0 which comes after the image data
+		final byte[] head = new byte[HEAD_LENGTH];
+		final int headLength = ByteStreams.read( in, head, 0, head.length );
+
+		try ( final SpillingInputStream spill = new SpillingInputStream( in ) ) {
+			final StreamReader data = new StreamReader( new SequenceInputStream(
+					new ByteArrayInputStream( head, 0, headLength ), spill ),
+					ByteOrder.BIG_ENDIAN, VERBOSE );
+
+			return readTiff( new TiffSource() {
+				@Override
+				public StreamReader at( final long offset, final ByteOrder byteOrder )
+						throws IOException {
+					final long position = data.position();
+					data.setByteOrder( byteOrder );
+					if ( offset >= position ) {
+						data.skip( offset - position );
+						return data;
+					}
+
+					// The stream can't go back, so read what's behind it from the head and spill
+					final int headOffset = (int) Math.min( offset, headLength );
+					return new StreamReader( new SequenceInputStream( new ByteArrayInputStream(
+							head, headOffset, headLength - headOffset ), new SourceInputStream(
+							spill, offset - headOffset ) ), byteOrder, VERBOSE );
+				}
+			}, budget );
+		}
+	}
+
+	// Reads a TIFF file with positional reads, so the IFDs and values may be stored in any order
+	public static ExifTags readTiff( final SeekableByteSource source ) throws IOException {
+		return readTiff( source, ParseBudget.DEFAULT );
+	}
+
+	public static ExifTags readTiff( final SeekableByteSource source, final ParseBudget budget )
+			throws IOException {
+		return readTiff( new TiffSource() {
+			@Override
+			public StreamReader at( final long offset, final ByteOrder byteOrder )
+					throws IOException {
+				return new StreamReader( new SourceInputStream( source, offset ), byteOrder,
+						VERBOSE );
+			}
+		}, budget );
+	}
+
+	// Reads the IFDs and values in order of offset, nearest first
+	private static ExifTags readTiff( final TiffSource data, final ParseBudget budget )
+			throws IOException {
+		final StreamReader header = data.at( 0, ByteOrder.BIG_ENDIAN );
+
+		// Check and write the byte order for the remaining data
+		final ByteOrder byteOrder = header.readByteOrder();
+		header.setByteOrder( byteOrder );
+
+		// Validate TIFF marker
+		checkState( header.readShort() == TIFF_MARKER, "Invalid TIFF marker" );
+
+		final ExifTags exif = ExifTags.empty();
+		final ParseBudget.Usage usage = budget.start();
+
+		// Everything still to be read, nearest first
+		final Queue<PendingRead> pending = new PriorityQueue<>();
+		pending.add( new PendingDirectory( ImageFileDirectory.Image, header.readInt() ) );
+
+		while ( !pending.isEmpty() ) {
+			usage.check();
+			final PendingRead next = pending.poll();
+			if ( !next.visit( usage ) ) {
+				LOG.warn( "Skipping {} at offset={}, already read", next, next.offset );
+				continue;
+			}
+
+			next.read( data.at( next.offset, byteOrder ), exif, pending, usage );
+
+			// Queue up any IFD references we found
+			for ( final Map.Entry<ExifTagReference, ImageFileDirectory> entry : IFD_TAGS.entrySet() ) {
+				for ( final int ifdOffset : integers( exif.remove( entry.getKey() ) ) ) {
+					pending.add( new PendingDirectory( entry.getValue(), ifdOffset ) );
+				}
+			}
+
+			// Queue up any embedded thumbnails once we have both their offset and length
+			if ( exif.contains( Thumbnail.JPEGInterchangeFormat ) && exif.contains(
+					Thumbnail.JPEGInterchangeFormatLength ) ) {
+				final Integer[] thumbnails = integers( exif.remove(
+						Thumbnail.JPEGInterchangeFormat ) ).toArray( new Integer[0] );
+				final Integer[] thumbnailLengths = integers( exif.remove(
+						Thumbnail.JPEGInterchangeFormatLength ) ).toArray( new Integer[0] );
+				checkState( thumbnails.length == thumbnailLengths.length,
+						"%s JPEGInterchangeFormat but %s JPEGInterchangeFormatLength found",
+						thumbnails.length, thumbnailLengths.length );
+
+				for ( int i = 0; i < thumbnails.length; i++ ) {
+					checkBudget( usage.addValue( 0xffffffffL & thumbnailLengths[i] ),
+							"Parse budget exceeded by thumbnail at offset=%s", thumbnails[i] );
+					pending.add( new PendingThumbnail( thumbnails[i], thumbnailLengths[i] ) );
+				}
+			}
+		}
+
+		return exif;
+	}
+
+	public static ExifTags read( final ByteBuffer buffer ) throws IOException {
+		return read( buffer, false );
+	}
+
+	// When lazy, values are only decoded the first time their tag is accessed. The buffer is
+	// then held on to by the returned tags and must not be modified.
+	public static ExifTags read( final ByteBuffer buffer, final boolean lazy ) throws IOException {
+		return read( buffer, lazy, null, false, ParseBudget.DEFAULT );
+	}
+
+	// Decodes only the given tags, IFDs which can't contain any of them are never visited and
+	// thumbnails are only loaded if JPEGInterchangeFormat is requested.
+	public static ExifTags read( final ByteBuffer buffer,
+			final Set<? extends Supplier<ExifTagReference>> tags ) throws IOException {
+		return read( buffer, false, references( tags ), false, ParseBudget.DEFAULT );
+	}
+
+	// Problems with the data are recorded on the returned tags rather than thrown or logged,
+	// anything which can't be read is skipped.
+	public static ExifTags readLenient( final ByteBuffer buffer ) throws IOException {
+		return read( buffer, false, null, true, ParseBudget.DEFAULT );
+	}
+
+	public static ExifTags read( final ByteBuffer buffer, final ParseBudget budget )
+			throws IOException {
+		return read( buffer, false, null, false, budget );
+	}
+
+	// Going over the budget is recorded as a diagnostic, keeping whatever was read before it
+	public static ExifTags readLenient( final ByteBuffer buffer, final ParseBudget budget )
+			throws IOException {
+		return read( buffer, false, null, true, budget );
+	}
+
+	static ExifTags read( final ByteBuffer buffer, final boolean lazy,
+			final Set<ExifTagReference> projection, final boolean lenient,
+			final ParseBudget budget ) throws IOException {
+		final ExifTagsVisitor visitor = new ExifTagsVisitor( lazy, projection, lenient );
+		walk( buffer, directories( projection ), visitor, visitor.diagnostics, budget.start() );
+		return visitor.getExif();
+	}
+
+	// Reads a TIFF file, or any format built on one, rather than an exif segment
+	public static ExifTags readTiff( final ByteBuffer buffer ) throws IOException {
+		return readTiff( buffer, false, null, false, ParseBudget.DEFAULT );
+	}
+
+	static ExifTags readTiff( final ByteBuffer buffer, final boolean lazy,
+			final Set<ExifTagReference> projection, final boolean lenient,
+			final ParseBudget budget ) throws IOException {
+		final ExifTagsVisitor visitor = new ExifTagsVisitor( lazy, projection, lenient );
+		final BufferReader data = new BufferReader( buffer, ByteOrder.BIG_ENDIAN, VERBOSE );
+		walkTiff( data, directories( projection ), visitor, visitor.diagnostics,
+				budget.start() );
+		return visitor.getExif();
+	}
+
+	// Reports each directory, tag and thumbnail to the visitor as it is found, without building
+	// up any tags. Values are only decoded if the visitor asks for them.
+	public static void read( final ByteBuffer buffer, final ExifVisitor visitor )
+			throws IOException {
+		walk( buffer, EnumSet.allOf( ImageFileDirectory.class ), visitor, null,
+				ParseBudget.DEFAULT.start() );
+	}
+
+	public static void readTiff( final ByteBuffer buffer, final ExifVisitor visitor )
+			throws IOException {
+		final BufferReader data = new BufferReader( buffer, ByteOrder.BIG_ENDIAN, VERBOSE );
+		walkTiff( data, EnumSet.allOf( ImageFileDirectory.class ), visitor, null,
+				ParseBudget.DEFAULT.start() );
+	}
+
+	// Whether the segment starts with "Exif\0\0", so isn't some other APP1 segment such as XMP
+	static boolean isExif( final ByteBuffer segment ) {
+		if ( segment.remaining() < 6 ) {
+			return false;
+		}
+		final byte[] header = new byte[6];
+		segment.duplicate().get( header );
+		return EXIF_NAME.equalsIgnoreCase( new String( header, 0, 4, Charsets.US_ASCII ) )
+				&& header[4] == 0 && header[5] == 0;
+	}
+
+	// When diagnostics are given problems are recorded there, otherwise they are thrown or
+	// logged as before
+	private static void walk( final ByteBuffer buffer, final Set<ImageFileDirectory> directories,
+			final ExifVisitor visitor, final List<Diagnostic> diagnostics,
+			final ParseBudget.Usage usage ) throws IOException {
+		final BufferReader data = new BufferReader( buffer, ByteOrder.BIG_ENDIAN, VERBOSE );
 
 		if ( !data.available() ) {
-			return ExifTags.empty();
+			return;
 		}
 
 		// Validate the start of the exif data
-		checkState( EXIF_NAME.equalsIgnoreCase( data.readString( 4 ) ), "Invalid Exif header" );
-		checkState( data.readShort() == 0 );
+		if ( !isExif( buffer ) ) {
+			fail( diagnostics, new Diagnostic( Code.INVALID_HEADER, null, -1, -1 ) );
+			return;
+		}
+		data.seek( 6 );
 
+		walkTiff( data, directories, visitor, diagnostics, usage );
+	}
+
+	private static void walkTiff( final BufferReader data,
+			final Set<ImageFileDirectory> directories, final ExifVisitor visitor,
+			final List<Diagnostic> diagnostics, final ParseBudget.Usage usage )
+			throws IOException {
 		// Mark the start of the TIFF data
 		data.mark();
 
 		// Check and write the byte order for the remaining data
-		data.setByteOrder( data.readByteOrder() );
+		final int byteOrder = data.length() < 8 ? 0 : data.readShort();
+		if ( byteOrder != 0x4949 && byteOrder != 0x4D4D ) {
+			fail( diagnostics, new Diagnostic( Code.INVALID_BYTE_ORDER, null, -1, 0 ) );
+			return;
+		}
+		data.setByteOrder( byteOrder == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
 
 		// Validate TIFF marker
-		checkState( data.readShort() == TIFF_MARKER, "Invalid TIFF marker" );
-
-		final ExifTags exif = ExifTags.empty();
+		if ( data.readShort() != TIFF_MARKER ) {
+			fail( diagnostics, new Diagnostic( Code.INVALID_TIFF_MARKER, null, -1, 2 ) );
+			return;
+		}
 
 		final Queue<ImageFileDirectoryReference> ifds = new LinkedList<>();
-		ifds.add( new ImageFileDirectoryReference( ImageFileDirectory.Image, data.readInt() ) );
+		if ( directories.contains( ImageFileDirectory.Image ) ) {
+			ifds.add( new ImageFileDirectoryReference( ImageFileDirectory.Image, data.readInt() ) );
+		}
+
+		final List<Integer> thumbnails = new ArrayList<>();
+		final List<Integer> thumbnailLengths = new ArrayList<>();
 
 		// While we still know about IFDs...
 		while ( !ifds.isEmpty() ) {
+			usage.check();
 			final Collection<ExifTagData> tags = Lists.newLinkedList();
 
 			final ImageFileDirectoryReference ifd = ifds.poll();
+			final long offset = 0xffffffffL & ifd.offset;
+			if ( !contains( data, offset, 2 ) || !contains( data, offset + 2, ENTRY_SIZE
+					* (long) data.getShort( ifd.offset ) ) ) {
+				skip( diagnostics, new Diagnostic( Code.INVALID_DIRECTORY_OFFSET, ifd.ifd, -1,
+						offset ) );
+				continue;
+			}
+			if ( !usage.visit( offset ) ) {
+				skip( diagnostics, new Diagnostic( Code.DIRECTORY_CYCLE, ifd.ifd, -1, offset ) );
+				continue;
+			}
 			data.seek( ifd.offset );
 
 			final int tagCount = data.readShort();
 			LOG.info( "Found {} entries at offset={} in IFD={}", tagCount, ifd.offset, ifd.ifd );
+			if ( !usage.addDirectory( tagCount ) ) {
+				fail( diagnostics, new Diagnostic( Code.BUDGET_EXCEEDED, ifd.ifd, -1, offset ) );
+				return;
+			}
+			if ( !visitor.onDirectory( ifd.ifd, offset ) ) {
+				return;
+			}
 
 			for ( int tagIndex = 0; tagIndex < tagCount; tagIndex++ ) {
+				final int entry = data.offset();
+				if ( !FieldType.isKnown( data.getShort( entry + 2 ) ) ) {
+					skip( diagnostics, new Diagnostic( Code.UNKNOWN_FIELD_TYPE, ifd.ifd,
+							data.getShort( entry ), entry ) );
+					data.seek( entry + ENTRY_SIZE );
+					continue;
+				}
+
 				final ExifTagData tagData = ExifTagData.read( ifd.ifd, data );
+				final long length = tagData.getLongLength();
+				if ( length > 4 && !contains( data, tagData.getOffset(), length ) ) {
+					skip( diagnostics, new Diagnostic( Code.INVALID_VALUE_OFFSET, ifd.ifd,
+							tagData.get().getId(), entry ) );
+					continue;
+				}
+				if ( length > 4 && !usage.addValue( length ) ) {
+					fail( diagnostics, new Diagnostic( Code.BUDGET_EXCEEDED, ifd.ifd,
+							tagData.get().getId(), entry ) );
+					return;
+				}
 				tags.add( tagData );
 			}
 
-			// Look for the next IFD
-			final int nextOffset = data.readInt();
-			if ( nextOffset != 0 ) {
+			// Look for the next IFD, some writers leave the pointer off the last one
+			final int nextOffset = contains( data, data.offset(), 4 ) ? data.readInt() : 0;
+			if ( nextOffset != 0 && directories.contains( ImageFileDirectory.Thumbnail ) ) {
 				ifds.add( new ImageFileDirectoryReference( ImageFileDirectory.Thumbnail,
 						nextOffset ) );
 			}
 
 			for ( final ExifTagData tag : tags ) {
+				usage.check();
 				final ExifTagReference reference = tag.get();
-				try {
-					final Collection<Object> values = tag.get( data );
-					LOG.info( "Loading entry: {} = {}", reference, values );
-					exif.addAll( reference, values );
-				} catch ( final Exception e ) {
+
+				// Pointers to other IFDs and thumbnails are followed rather than reported
+				final ImageFileDirectory pointer = IFD_TAGS.get( reference );
+				if ( pointer != null ) {
+					for ( final int pointerOffset : integers( decode( tag, data ) ) ) {
+						if ( directories.contains( pointer ) ) {
+							ifds.add( new ImageFileDirectoryReference( pointer, pointerOffset ) );
+						}
+					}
+				} else if ( reference.equals( Thumbnail.JPEGInterchangeFormat.get() ) ) {
+					thumbnails.addAll( integers( decode( tag, data ) ) );
+				} else if ( reference.equals( Thumbnail.JPEGInterchangeFormatLength.get() ) ) {
+					thumbnailLengths.addAll( integers( decode( tag, data ) ) );
+				} else if ( !visitor.onTag( reference, reference.getType(), tag.getCount(),
+						new TagValue( tag, data ) ) ) {
+					return;
+				}
+			}
+		}
+
+		// Report any embedded thumbnails
+		if ( thumbnails.size() != thumbnailLengths.size() ) {
+			fail( diagnostics, new Diagnostic( Code.THUMBNAIL_MISMATCH,
+					ImageFileDirectory.Thumbnail, -1, -1 ) );
+		}
+
+		for ( int i = 0; i < Math.min( thumbnails.size(), thumbnailLengths.size() ); i++ ) {
+			final int offset = thumbnails.get( i );
+			final int length = thumbnailLengths.get( i );
+			if ( !contains( data, 0xffffffffL & offset, 0xffffffffL & length ) ) {
+				skip( diagnostics, new Diagnostic( Code.INVALID_THUMBNAIL,
+						ImageFileDirectory.Thumbnail, -1, 0xffffffffL & offset ) );
+				continue;
+			}
+			if ( !usage.addValue( length ) ) {
+				fail( diagnostics, new Diagnostic( Code.BUDGET_EXCEEDED,
+						ImageFileDirectory.Thumbnail, -1, 0xffffffffL & offset ) );
+				return;
+			}
+
+			// Only a handle on the thumbnail, its bytes stay where they are until asked for
+			LOG.info( "Found thumbnail: {} bytes at offset={}", length, offset );
+			if ( !visitor.onThumbnail( new ExifThumbnail( 0xffffffffL & offset,
+					data.slice( offset, length ).readBuffer( length ) ) ) ) {
+				return;
+			}
+		}
+	}
+
+	// Offsets and lengths written with the wrong field type are ignored
+	private static List<Integer> integers( final Collection<?> values ) {
+		final List<Integer> integers = new ArrayList<>( values.size() );
+		for ( final Object value : values ) {
+			if ( value instanceof Integer ) {
+				integers.add( (Integer) value );
+			}
+		}
+		return integers;
+	}
+
+	// Whether length bytes at the offset from the start of the TIFF data are all within it
+	private static boolean contains( final BufferReader data, final long offset,
+			final long length ) {
+		return offset + length <= data.length();
+	}
+
+	// Problems which leave nothing more to read
+	private static void fail( final List<Diagnostic> diagnostics, final Diagnostic diagnostic ) {
+		if ( diagnostics == null && diagnostic.getCode() == Code.BUDGET_EXCEEDED ) {
+			throw new ParseBudgetExceededException( diagnostic.toString() );
+		}
+		if ( diagnostics == null ) {
+			throw new IllegalStateException( diagnostic.toString() );
+		}
+		diagnostics.add( diagnostic );
+	}
+
+	private static void checkBudget( final boolean withinBudget, final String message,
+			final Object... args ) {
+		if ( !withinBudget ) {
+			throw new ParseBudgetExceededException( String.format( message, args ) );
+		}
+	}
+
+	// Problems with a single IFD, tag or thumbnail which can be read around
+	private static void skip( final List<Diagnostic> diagnostics, final Diagnostic diagnostic ) {
+		if ( diagnostics == null ) {
+			LOG.warn( "Skipping {}", diagnostic );
+			return;
+		}
+		diagnostics.add( diagnostic );
+	}
+
+	static Set<ExifTagReference> references(
+			final Set<? extends Supplier<ExifTagReference>> tags ) {
+		final Set<ExifTagReference> references = new HashSet<>();
+		for ( final Supplier<ExifTagReference> tag : tags ) {
+			references.add( tag.get() );
+		}
+		return references;
+	}
+
+	// The IFDs which have to be visited to find the given tags, including those pointing to them
+	private static Set<ImageFileDirectory> directories( final Set<ExifTagReference> projection ) {
+		if ( projection == null ) {
+			return EnumSet.allOf( ImageFileDirectory.class );
+		}
+
+		final Set<ImageFileDirectory> directories = EnumSet.noneOf( ImageFileDirectory.class );
+		for ( final ExifTagReference tag : projection ) {
+			directories.add( tag.getIfd() );
+		}
+		if ( directories.contains( ImageFileDirectory.Iop ) ) {
+			directories.add( ImageFileDirectory.Exif );
+		}
+		if ( !directories.isEmpty() ) {
+			directories.add( ImageFileDirectory.Image );
+		}
+		return directories;
+	}
+
+	private static void load( final ExifTags exif, final ExifTagData tag, final BufferReader data ) {
+		final ExifTagReference reference = tag.get();
+		try {
+			final Collection<Object> values = tag.get( data );
+			LOG.info( "Loading entry: {} = {}", reference, values );
+			exif.addAll( reference, values );
+		} catch ( final Exception e ) {
+			LOG.warn( "Skipping invalid tag: {}", reference, e );
+		}
+	}
+
+	private static <T> Collection<T> decode( final ExifTagData tag, final BufferReader data ) {
+		try {
+			return tag.get( data );
+		} catch ( final Exception e ) {
+			LOG.warn( "Skipping invalid tag: {}", tag.get(), e );
+			return Collections.emptyList();
+		}
+	}
+
+	// Builds up the tags from a walk of the data
+	private static class ExifTagsVisitor implements ExifVisitor {
+		private final ExifTags exif = ExifTags.empty();
+		private final boolean lazy;
+		private final Set<ExifTagReference> projection;
+		private final List<Diagnostic> diagnostics;
+
+		private ExifTagsVisitor( final boolean lazy, final Set<ExifTagReference> projection,
+				final boolean lenient ) {
+			this.lazy = lazy;
+			this.projection = projection;
+			this.diagnostics = lenient ? new ArrayList<Diagnostic>() : null;
+		}
+
+		private ExifTags getExif() {
+			if ( diagnostics != null ) {
+				for ( final Diagnostic diagnostic : diagnostics ) {
+					exif.addDiagnostic( diagnostic );
+				}
+			}
+			return exif;
+		}
+
+		@Override
+		public boolean onDirectory( final ImageFileDirectory ifd, final long offset ) {
+			return true;
+		}
+
+		@Override
+		public boolean onTag( final ExifTagReference reference, final FieldType type,
+				final int count, final TagValue value ) {
+			if ( projection != null && !projection.contains( reference ) ) {
+				return true;
+			}
+
+			if ( lazy ) {
+				exif.addUndecoded( reference, new Supplier<Collection<Object>>() {
+					@Override
+					public Collection<Object> get() {
+						return value.decodeOrEmpty();
+					}
+				} );
+				return true;
+			}
+
+			try {
+				final Collection<Object> values = value.decode();
+				LOG.info( "Loading entry: {} = {}", reference, values );
+				exif.addAll( reference, values );
+			} catch ( final Exception e ) {
+				if ( diagnostics == null ) {
 					LOG.warn( "Skipping invalid tag: {}", reference, e );
+				} else {
+					diagnostics.add( new Diagnostic( Code.INVALID_VALUE, reference.getIfd(),
+							reference.getId(), -1 ) );
 				}
 			}
+			return true;
+		}
 
-			// Queue up any IFD references we found
-			for ( final Map.Entry<ExifTagReference, ImageFileDirectory> entry : IFD_TAGS.entrySet() ) {
-				for ( final int offset : exif.<Integer>remove( entry.getKey() ) ) {
-					ifds.add( new ImageFileDirectoryReference( entry.getValue(), offset ) );
+		@Override
+		public boolean onThumbnail( final ExifThumbnail thumbnail ) {
+			if ( projection == null || projection.contains(
+					Thumbnail.JPEGInterchangeFormat.get() ) ) {
+				// Only lazy tags may hold on to a mapped file, otherwise it would stay mapped and
+				// the thumbnail would change along with the file
+				final boolean shared = lazy || !thumbnail.getBuffer().isDirect();
+				exif.addThumbnail( shared ? thumbnail : thumbnail.copy() );
+			}
+			return true;
+		}
+	}
+
+	// Copies everything read from the stream to a temporary file, created on the first byte read,
+	// where it can be read again at any position. Closing deletes the file but not the stream.
+	private static class SpillingInputStream extends FilterInputStream
+			implements SeekableByteSource {
+		private final byte[] scratch = new byte[8192];
+		private FileChannel spill;
+
+		private SpillingInputStream( final InputStream in ) {
+			super( in );
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int read = read( scratch, 0, 1 );
+			return read < 0 ? -1 : 0xff & scratch[0];
+		}
+
+		@Override
+		public int read( final byte[] b, final int off, final int len ) throws IOException {
+			final int read = super.read( b, off, len );
+			if ( read > 0 ) {
+				if ( spill == null ) {
+					spill = FileChannel.open( Files.createTempFile( "exif", ".tmp" ),
+							StandardOpenOption.READ, StandardOpenOption.WRITE,
+							StandardOpenOption.DELETE_ON_CLOSE );
+				}
+				final ByteBuffer bytes = ByteBuffer.wrap( b, off, read );
+				while ( bytes.hasRemaining() ) {
+					spill.write( bytes, spill.size() );
+				}
+			}
+			return read;
+		}
+
+		// Skipped bytes may be needed later, so they are read and spilled like any other
+		@Override
+		public long skip( final long n ) throws IOException {
+			final int read = read( scratch, 0, (int) Math.min( n, scratch.length ) );
+			return Math.max( read, 0 );
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return spill == null ? 0 : spill.size();
+		}
+
+		@Override
+		public int read( final ByteBuffer dst, final long position ) throws IOException {
+			return spill == null ? -1 : spill.read( dst, position );
+		}
+
+		@Override
+		public void close() throws IOException {
+			if ( spill != null ) {
+				spill.close();
+			}
+		}
+	}
+
+	// Where the pass over a TIFF file reads from, at an offset from the start of the TIFF data
+	private interface TiffSource {
+		StreamReader at( final long offset, final ByteOrder byteOrder ) throws IOException;
+	}
+
+	private static abstract class PendingRead implements Comparable<PendingRead> {
+		private final long offset;
+
+		private PendingRead( final long offset ) {
+			this.offset = offset;
+		}
+
+		abstract void read( final StreamReader data, final ExifTags exif,
+				final Queue<PendingRead> pending, final ParseBudget.Usage usage )
+				throws IOException;
+
+		// Returns false if this has already been read
+		boolean visit( final ParseBudget.Usage usage ) {
+			return true;
+		}
+
+		@Override
+		public int compareTo( final PendingRead other ) {
+			return Long.compare( offset, other.offset );
+		}
+	}
+
+	private static class PendingDirectory extends PendingRead {
+		private final ImageFileDirectory ifd;
+
+		private PendingDirectory( final ImageFileDirectory ifd, final int offset ) {
+			super( 0xffffffffL & offset );
+			this.ifd = ifd;
+		}
+
+		@Override
+		boolean visit( final ParseBudget.Usage usage ) {
+			return usage.visit( super.offset );
+		}
+
+		@Override
+		void read( final StreamReader data, final ExifTags exif, final Queue<PendingRead> pending,
+				final ParseBudget.Usage usage ) throws IOException {
+			final int tagCount = data.readShort();
+			LOG.info( "Found {} entries at offset={} in IFD={}", tagCount, super.offset, ifd );
+			checkBudget( usage.addDirectory( tagCount ),
+					"Parse budget exceeded by IFD=%s at offset=%s", ifd, super.offset );
+
+			// Buffer the entry table so values stored in place can be decoded straight from it
+			final BufferReader entries = new BufferReader(
+					ByteBuffer.wrap( data.readBytes( tagCount * 12 + 4 ) ), data.getByteOrder(),
+					VERBOSE );
+
+			for ( int tagIndex = 0; tagIndex < tagCount; tagIndex++ ) {
+				final ExifTagData tag = ExifTagData.read( ifd, entries );
+				if ( tag.isInline() ) {
+					load( exif, tag, entries );
+				} else {
+					checkBudget( usage.addValue( tag.getLongLength() ),
+							"Parse budget exceeded by %s", tag.get() );
+					pending.add( new PendingValue( tag ) );
 				}
 			}
+
+			// Look for the next IFD
+			final int nextOffset = entries.readInt();
+			if ( nextOffset != 0 ) {
+				pending.add( new PendingDirectory( ImageFileDirectory.Thumbnail, nextOffset ) );
+			}
 		}
 
-		// Fetch any embedded thumbnails
-		final Integer[] thumbnails = exif.<Integer>remove(
-				Thumbnail.JPEGInterchangeFormat ).toArray( new Integer[0] );
-		final Integer[] thumbnailLengths = exif.<Integer>remove(
-				Thumbnail.JPEGInterchangeFormatLength ).toArray( new Integer[0] );
-		checkState( thumbnails.length == thumbnailLengths.length,
-				"%s JPEGInterchangeFormat but %s JPEGInterchangeFormatLength found",
-				thumbnails.length, thumbnailLengths.length );
+		@Override
+		public String toString() {
+			return "IFD " + ifd;
+		}
+	}
 
-		for ( int i = 0; i < thumbnails.length; i++ ) {
-			final int offset = thumbnails[i];
-			final int length = thumbnailLengths[i];
+	private static class PendingValue extends PendingRead {
+		private final ExifTagData tag;
 
-			data.seek( offset );
+		private PendingValue( final ExifTagData tag ) {
+			super( tag.getOffset() );
+			this.tag = tag;
+		}
+
+		@Override
+		void read( final StreamReader data, final ExifTags exif, final Queue<PendingRead> pending,
+				final ParseBudget.Usage usage ) throws IOException {
+			final ExifTagReference reference = tag.get();
+			final BufferReader value = new BufferReader(
+					ByteBuffer.wrap( data.readBytes( tag.getLength() ) ), data.getByteOrder(),
+					VERBOSE );
+			try {
+				final Collection<Object> values = tag.decode( value );
+				LOG.info( "Loading entry: {} = {}", reference, values );
+				exif.addAll( reference, values );
+			} catch ( final Exception e ) {
+				LOG.warn( "Skipping invalid tag: {}", reference, e );
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "value of " + tag.get();
+		}
+	}
+
+	private static class PendingThumbnail extends PendingRead {
+		private final int length;
+
+		private PendingThumbnail( final int offset, final int length ) {
+			super( 0xffffffffL & offset );
+			this.length = length;
+		}
+
+		@Override
+		void read( final StreamReader data, final ExifTags exif, final Queue<PendingRead> pending,
+				final ParseBudget.Usage usage ) throws IOException {
 			final byte[] bytes = data.readBytes( length );
 			LOG.info( "Loading thumbnail: {} bytes", bytes.length );
-			exif.addThumbnail( bytes );
+			exif.addThumbnail( new ExifThumbnail( super.offset, ByteBuffer.wrap( bytes ) ) );
 		}
 
-		return exif;
+		@Override
+		public String toString() {
+			return "thumbnail";
+		}
 	}
 
 	private static class ImageFileDirectoryReference {
@@ -0,0 +1,191 @@
+package com.furnaghan.exif.parser;
+
+import static com.furnaghan.exif.parser.ExifParser.EXIF_NAME;
+import static com.furnaghan.exif.parser.ExifParser.TIFF_MARKER;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.furnaghan.exif.ExifTagData;
+import com.furnaghan.exif.ExifTagReference;
+import com.furnaghan.exif.ImageFileDirectory;
+import com.furnaghan.exif.io.BufferReader;
+import com.furnaghan.exif.tag.Exif;
+import com.furnaghan.exif.tag.Image;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.collect.Iterables;
+
+// Answers lookups straight from the raw exif segment, binary searching the entry table of the
+// IFD rather than decoding every entry. Only the IFD offsets are found up front, the view never
+// modifies the buffer so may be shared between threads.
+public class ExifView {
+
+	private static final Logger LOG = LoggerFactory.getLogger( ExifView.class );
+
+	private static final int ENTRY_SIZE = 12;
+
+	// The segment starts with "Exif\0\0" followed by the TIFF data
+	public static ExifView of( final ByteBuffer segment ) {
+		final ByteBuffer header = segment.duplicate().order( ByteOrder.BIG_ENDIAN );
+		final byte[] name = new byte[4];
+		header.get( name );
+		checkState( EXIF_NAME.equalsIgnoreCase( new String( name, Charsets.US_ASCII ) ),
+				"Invalid Exif header" );
+		checkState( header.getShort() == 0 );
+		return ofTiff( header.slice() );
+	}
+
+	// The TIFF data alone, as found at the start of a TIFF file
+	public static ExifView ofTiff( final ByteBuffer buffer ) {
+		final ByteBuffer tiff = buffer.slice();
+		final int byteOrder = 0xffff & tiff.getShort( 0 );
+		checkState( byteOrder == 0x4949 || byteOrder == 0x4D4D, "Invalid byte order" );
+		tiff.order( byteOrder == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+		checkState( ( 0xffff & tiff.getShort( 2 ) ) == TIFF_MARKER, "Invalid TIFF marker" );
+
+		return new ExifView( tiff );
+	}
+
+	private final ByteBuffer tiff;
+	private final int[] offsets;
+	private final boolean[] sorted;
+
+	private ExifView( final ByteBuffer tiff ) {
+		this.tiff = tiff;
+		this.offsets = new int[ImageFileDirectory.values().length];
+		this.sorted = new boolean[offsets.length];
+		Arrays.fill( offsets, -1 );
+
+		directory( ImageFileDirectory.Image, tiff.getInt( 4 ) );
+
+		// The thumbnail IFD follows the entries of the image IFD
+		final int image = offsets[ImageFileDirectory.Image.ordinal()];
+		if ( image >= 0 ) {
+			final int next = entry( image, 0xffff & tiff.getShort( image ) );
+			if ( next + 4 <= tiff.limit() ) {
+				directory( ImageFileDirectory.Thumbnail, tiff.getInt( next ) );
+			}
+		}
+		directory( ImageFileDirectory.Exif, pointer( Image.ExifTag.get() ) );
+		directory( ImageFileDirectory.GPSInfo, pointer( Image.GPSTag.get() ) );
+		directory( ImageFileDirectory.Iop, pointer( Exif.InteroperabilityTag.get() ) );
+	}
+
+	public ByteOrder getByteOrder() {
+		return tiff.order();
+	}
+
+	public boolean contains( final Supplier<ExifTagReference> supplier ) {
+		return contains( supplier.get() );
+	}
+
+	public boolean contains( final ExifTagReference tag ) {
+		return find( tag ) >= 0;
+	}
+
+	public <T> Collection<T> get( final Supplier<ExifTagReference> supplier ) throws IOException {
+		return get( supplier.get() );
+	}
+
+	public <T> Collection<T> get( final ExifTagReference tag ) throws IOException {
+		final int entry = find( tag );
+		if ( entry < 0 ) {
+			return Collections.emptyList();
+		}
+
+		final BufferReader data = new BufferReader( tiff, tiff.order() );
+		data.seek( entry );
+		return ExifTagData.read( tag.getIfd(), data ).get( data );
+	}
+
+	public <T> Optional<T> getFirst( final Supplier<ExifTagReference> supplier )
+			throws IOException {
+		return getFirst( supplier.get() );
+	}
+
+	public <T> Optional<T> getFirst( final ExifTagReference tag ) throws IOException {
+		final Collection<T> values = get( tag );
+		return Optional.fromNullable( Iterables.getFirst( values, null ) );
+	}
+
+	// The offset of the entry for the tag, or -1 if there is none
+	private int find( final ExifTagReference tag ) {
+		final int ifd = tag.getIfd().ordinal();
+		final int offset = offsets[ifd];
+		if ( offset < 0 ) {
+			return -1;
+		}
+
+		final int id = tag.getId();
+		final int count = 0xffff & tiff.getShort( offset );
+
+		// Entries should be sorted by id, but not every writer gets that right
+		if ( sorted[ifd] ) {
+			int low = 0;
+			int high = count - 1;
+			while ( low <= high ) {
+				final int middle = ( low + high ) >>> 1;
+				final int entryId = id( offset, middle );
+				if ( entryId < id ) {
+					low = middle + 1;
+				} else if ( entryId > id ) {
+					high = middle - 1;
+				} else {
+					return entry( offset, middle );
+				}
+			}
+			return -1;
+		}
+
+		for ( int i = 0; i < count; i++ ) {
+			if ( id( offset, i ) == id ) {
+				return entry( offset, i );
+			}
+		}
+		return -1;
+	}
+
+	// The offset an IFD pointer tag points to, or 0 if it isn't present
+	private int pointer( final ExifTagReference tag ) {
+		final int entry = find( tag );
+		return entry < 0 ? 0 : tiff.getInt( entry + 8 );
+	}
+
+	private void directory( final ImageFileDirectory ifd, final int offset ) {
+		if ( offset == 0 ) {
+			return;
+		}
+		if ( offset < 0 || offset + 2 > tiff.limit() || offset + 2 + ( 0xffff & tiff.getShort(
+				offset ) ) * ENTRY_SIZE > tiff.limit() ) {
+			LOG.warn( "Ignoring IFD={} at invalid offset={}", ifd, offset );
+			return;
+		}
+
+		offsets[ifd.ordinal()] = offset;
+
+		boolean inOrder = true;
+		final int count = 0xffff & tiff.getShort( offset );
+		for ( int i = 1; i < count && inOrder; i++ ) {
+			inOrder = id( offset, i - 1 ) <= id( offset, i );
+		}
+		sorted[ifd.ordinal()] = inOrder;
+	}
+
+	private static int entry( final int offset, final int index ) {
+		return offset + 2 + index * ENTRY_SIZE;
+	}
+
+	private int id( final int offset, final int index ) {
+		return 0xffff & tiff.getShort( entry( offset, index ) );
+	}
+}
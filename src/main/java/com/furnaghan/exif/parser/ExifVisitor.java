@@ -0,0 +1,20 @@
+package com.furnaghan.exif.parser;
+
+import java.io.IOException;
+
+import com.furnaghan.exif.ExifTagReference;
+import com.furnaghan.exif.ExifThumbnail;
+import com.furnaghan.exif.ImageFileDirectory;
+import com.furnaghan.exif.io.FieldType;
+
+// Receives the exif data as it is walked. Return false from any callback to stop the walk.
+public interface ExifVisitor {
+
+	boolean onDirectory( final ImageFileDirectory ifd, final long offset ) throws IOException;
+
+	// The value is only decoded if asked for, and only valid during the walk
+	boolean onTag( final ExifTagReference reference, final FieldType type, final int count,
+			final TagValue value ) throws IOException;
+
+	boolean onThumbnail( final ExifThumbnail thumbnail ) throws IOException;
+}
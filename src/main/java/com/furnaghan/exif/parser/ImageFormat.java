@@ -0,0 +1,58 @@
+package com.furnaghan.exif.parser;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.furnaghan.exif.io.SeekableByteSource;
+import com.google.common.io.ByteStreams;
+
+// Tells formats apart from their first few bytes, so anything we can't read is rejected without
+// scanning through it looking for markers.
+public enum ImageFormat {
+	JPEG,
+	// TIFF and the raw formats built on it
+	TIFF,
+	UNKNOWN;
+
+	private static final int MAGIC_LENGTH = 4;
+
+	public static ImageFormat sniff( final ByteBuffer buffer ) {
+		final byte[] magic = new byte[Math.min( MAGIC_LENGTH, buffer.remaining() )];
+		buffer.duplicate().get( magic );
+		return sniff( magic, magic.length );
+	}
+
+	// The stream is reset to where it was once the magic bytes are read
+	public static ImageFormat sniff( final InputStream in ) throws IOException {
+		checkArgument( in.markSupported(), "Stream must support mark" );
+		final byte[] magic = new byte[MAGIC_LENGTH];
+		in.mark( MAGIC_LENGTH );
+		final int length = ByteStreams.read( in, magic, 0, MAGIC_LENGTH );
+		in.reset();
+		return sniff( magic, length );
+	}
+
+	public static ImageFormat sniff( final SeekableByteSource source ) throws IOException {
+		final ByteBuffer magic = ByteBuffer.allocate( MAGIC_LENGTH );
+		while ( magic.hasRemaining() && source.read( magic, magic.position() ) > 0 ) {
+			continue;
+		}
+		return sniff( magic.array(), magic.position() );
+	}
+
+	private static ImageFormat sniff( final byte[] magic, final int length ) {
+		if ( length >= 3 && magic[0] == (byte) 0xFF && magic[1] == (byte) 0xD8
+				&& magic[2] == (byte) 0xFF ) {
+			return JPEG;
+		}
+		if ( length >= 4 && ( ( magic[0] == 'I' && magic[1] == 'I' && magic[2] == 0x2A
+				&& magic[3] == 0 ) || ( magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0
+				&& magic[3] == 0x2A ) ) ) {
+			return TIFF;
+		}
+		return UNKNOWN;
+	}
+}
@@ -0,0 +1,171 @@
+package com.furnaghan.exif.parser;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.furnaghan.exif.ExifTags;
+import com.furnaghan.exif.io.ChannelByteSource;
+import com.furnaghan.exif.io.SeekableByteSource;
+import com.furnaghan.exif.jpeg.JpegParser;
+import com.furnaghan.exif.jpeg.Marker;
+import com.furnaghan.exif.tag.Image;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+// The frame header of an image, read from the first SOF segment along with the orientation if an
+// exif segment comes before it. Nothing past the frame header is read and no tags are built.
+public class ImageProbe {
+
+	private static final Logger LOG = LoggerFactory.getLogger( ImageProbe.class );
+
+	// @formatter:off
+	private static final Set<Marker> FRAME_MARKERS = ImmutableSet.of(
+			Marker.SOF0, Marker.SOF1, Marker.SOF2, Marker.SOF3,
+			Marker.SOF5, Marker.SOF6, Marker.SOF7,
+			Marker.SOF9, Marker.SOF10, Marker.SOF11,
+			Marker.SOF13, Marker.SOF14, Marker.SOF15
+	);
+	private static final Set<Marker> PROGRESSIVE_MARKERS = ImmutableSet.of(
+			Marker.SOF2, Marker.SOF6, Marker.SOF10, Marker.SOF14
+	);
+	// @formatter:on
+
+	private static final Set<Marker> PROBE_MARKERS = Sets.union( FRAME_MARKERS,
+			ImmutableSet.of( Marker.APP1 ) );
+
+	public static Optional<ImageProbe> probe( final File file ) throws IOException {
+		try ( final FileChannel channel = FileChannel.open( file.toPath(),
+				StandardOpenOption.READ ) ) {
+			return probe( new ChannelByteSource( channel ) );
+		}
+	}
+
+	public static Optional<ImageProbe> probe( final SeekableByteSource source )
+			throws IOException {
+		final ProbeVisitor visitor = new ProbeVisitor();
+		JpegParser.read( source, PROBE_MARKERS, visitor );
+		return Optional.fromNullable( visitor.probe );
+	}
+
+	public static Optional<ImageProbe> probe( final ByteBuffer buffer ) throws IOException {
+		final ProbeVisitor visitor = new ProbeVisitor();
+		JpegParser.read( buffer, PROBE_MARKERS, visitor );
+		return Optional.fromNullable( visitor.probe );
+	}
+
+	public static Optional<ImageProbe> probe( final InputStream in ) throws IOException {
+		final ProbeVisitor visitor = new ProbeVisitor();
+		JpegParser.read( in, PROBE_MARKERS, visitor );
+		return Optional.fromNullable( visitor.probe );
+	}
+
+	private final Marker frame;
+	private final int precision;
+	private final int width;
+	private final int height;
+	private final int components;
+	private final Optional<ExifTags.Orientation> orientation;
+
+	private ImageProbe( final Marker frame, final int precision, final int width, final int height,
+			final int components, final Optional<ExifTags.Orientation> orientation ) {
+		this.frame = frame;
+		this.precision = precision;
+		this.width = width;
+		this.height = height;
+		this.components = components;
+		this.orientation = orientation;
+	}
+
+	// The SOF marker, which gives the coding process
+	public Marker getFrame() {
+		return frame;
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	// Zero if the height is only defined after the first scan
+	public int getHeight() {
+		return height;
+	}
+
+	public int getComponents() {
+		return components;
+	}
+
+	public boolean isBaseline() {
+		return frame == Marker.SOF0;
+	}
+
+	public boolean isProgressive() {
+		return PROGRESSIVE_MARKERS.contains( frame );
+	}
+
+	public Optional<ExifTags.Orientation> getOrientation() {
+		return orientation;
+	}
+
+	@Override
+	public String toString() {
+		return "ImageProbe{frame=" + frame.name() + ", precision=" + precision + ", width=" + width
+				+ ", height=" + height + ", components=" + components + ", orientation="
+				+ orientation + "}";
+	}
+
+	private static class ProbeVisitor implements JpegParser.SegmentVisitor {
+		private Optional<ExifTags.Orientation> orientation = Optional.absent();
+		private ImageProbe probe;
+
+		@Override
+		public boolean visit( final Marker marker, final long offset, final ByteBuffer segment )
+				throws IOException {
+			if ( marker == Marker.APP1 ) {
+				if ( !orientation.isPresent() ) {
+					orientation = readOrientation( segment );
+				}
+				return true;
+			}
+
+			// The frame header: precision, height, width then the component count
+			checkState( segment.remaining() >= 6, "Frame header of %s too short: %s bytes", marker,
+					segment.remaining() );
+			final ByteBuffer header = segment.duplicate().order( ByteOrder.BIG_ENDIAN );
+			final int precision = 0xff & header.get();
+			final int height = 0xffff & header.getShort();
+			final int width = 0xffff & header.getShort();
+			final int components = 0xff & header.get();
+			probe = new ImageProbe( marker, precision, width, height, components, orientation );
+			return false;
+		}
+
+		private static Optional<ExifTags.Orientation> readOrientation( final ByteBuffer segment )
+				throws IOException {
+			try {
+				final Optional<Integer> value = ExifView.of( segment ).getFirst( Image.Orientation );
+				return value.isPresent() ? Optional.fromNullable( ExifTags.Orientation.fromValue(
+						value.get() ) ) : Optional.<ExifTags.Orientation>absent();
+			} catch ( final RuntimeException e ) {
+				// Not every APP1 segment is exif
+				LOG.debug( "Ignoring APP1 segment", e );
+				return Optional.absent();
+			}
+		}
+	}
+}
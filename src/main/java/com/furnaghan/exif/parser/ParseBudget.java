@@ -0,0 +1,130 @@
+package com.furnaghan.exif.parser;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.furnaghan.exif.Deadline;
+
+// Limits on how much of the data a single read will look at, so untrusted input can't make a
+// read run for long or allocate much memory whatever it claims to hold.
+public class ParseBudget {
+
+	// Far more than any camera writes, but small enough to bound the cost of a crafted file
+	public static final ParseBudget DEFAULT = new ParseBudget( 64, 16 * 1024, 16 * 1024 * 1024,
+			64 * 1024 * 1024, Deadline.NONE );
+
+	public static final ParseBudget UNLIMITED = new ParseBudget( Integer.MAX_VALUE,
+			Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Deadline.NONE );
+
+	private final int maxDirectories;
+	private final int maxEntries;
+	private final long maxValueBytes;
+	private final long maxBytes;
+	private final Deadline deadline;
+
+	private ParseBudget( final int maxDirectories, final int maxEntries, final long maxValueBytes,
+			final long maxBytes, final Deadline deadline ) {
+		checkArgument( maxDirectories > 0 && maxEntries >= 0 && maxValueBytes >= 0
+				&& maxBytes >= 0, "Limits must not be negative" );
+		this.maxDirectories = maxDirectories;
+		this.maxEntries = maxEntries;
+		this.maxValueBytes = maxValueBytes;
+		this.maxBytes = maxBytes;
+		this.deadline = deadline;
+	}
+
+	public ParseBudget withMaxDirectories( final int maxDirectories ) {
+		return new ParseBudget( maxDirectories, maxEntries, maxValueBytes, maxBytes,
+				deadline );
+	}
+
+	public ParseBudget withMaxEntries( final int maxEntries ) {
+		return new ParseBudget( maxDirectories, maxEntries, maxValueBytes, maxBytes,
+				deadline );
+	}
+
+	public ParseBudget withMaxValueBytes( final long maxValueBytes ) {
+		return new ParseBudget( maxDirectories, maxEntries, maxValueBytes, maxBytes,
+				deadline );
+	}
+
+	public ParseBudget withMaxBytes( final long maxBytes ) {
+		return new ParseBudget( maxDirectories, maxEntries, maxValueBytes, maxBytes,
+				deadline );
+	}
+
+	// Time is part of the budget too, a read gives up once the deadline passes
+	public ParseBudget withDeadline( final Deadline deadline ) {
+		return new ParseBudget( maxDirectories, maxEntries, maxValueBytes, maxBytes, deadline );
+	}
+
+	// The number of IFDs read, over all directories
+	public int getMaxDirectories() {
+		return maxDirectories;
+	}
+
+	// The number of IFD entries read, over all directories
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	// The length of any single value or thumbnail
+	public long getMaxValueBytes() {
+		return maxValueBytes;
+	}
+
+	// The total length of the entry tables, values and thumbnails read
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public Deadline getDeadline() {
+		return deadline;
+	}
+
+	Usage start() {
+		return new Usage();
+	}
+
+	@Override
+	public String toString() {
+		return "ParseBudget{maxDirectories=" + maxDirectories + ", maxEntries=" + maxEntries
+				+ ", maxValueBytes=" + maxValueBytes + ", maxBytes=" + maxBytes + "}";
+	}
+
+	// What a single read has used so far, each method returns false once over budget
+	class Usage {
+		private final Set<Long> visited = new HashSet<>();
+		private int directories;
+		private long entries;
+		private long bytes;
+
+		void check() throws InterruptedIOException {
+			deadline.check();
+		}
+
+		// Each IFD is only read once, so a loop of IFDs can't be followed forever
+		boolean visit( final long offset ) {
+			return visited.add( offset );
+		}
+
+		boolean addDirectory( final int entryCount ) {
+			directories++;
+			entries += entryCount;
+			return directories <= maxDirectories && entries <= maxEntries
+					&& addBytes( 2 + 12L * entryCount + 4 );
+		}
+
+		boolean addValue( final long length ) {
+			return length <= maxValueBytes && addBytes( length );
+		}
+
+		private boolean addBytes( final long length ) {
+			bytes += length;
+			return bytes <= maxBytes;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package com.furnaghan.exif.parser;
+
+// Thrown when the data needs more reading than the ParseBudget allows. Unlike other problems
+// with an exif segment it is never passed over, so the budget holds for the whole image.
+public class ParseBudgetExceededException extends IllegalStateException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ParseBudgetExceededException( final String message ) {
+		super( message );
+	}
+}
@@ -0,0 +1,47 @@
+package com.furnaghan.exif.parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.furnaghan.exif.ExifTagData;
+import com.furnaghan.exif.io.BufferReader;
+
+// Access to the value of a single tag, straight from the data it was read from
+public class TagValue {
+
+	private static final Logger LOG = LoggerFactory.getLogger( TagValue.class );
+
+	private final ExifTagData tag;
+	private final BufferReader data;
+
+	TagValue( final ExifTagData tag, final BufferReader data ) {
+		this.tag = tag;
+		this.data = data;
+	}
+
+	public <T> Collection<T> decode() throws IOException {
+		return tag.get( data );
+	}
+
+	// The raw bytes of the value, in the byte order of the data
+	public ByteBuffer getBuffer() {
+		final BufferReader value = tag.slice( data );
+		return value.readBuffer( tag.getLength() ).order( value.getByteOrder() );
+	}
+
+	<T> Collection<T> decodeOrEmpty() {
+		try {
+			final Collection<T> values = decode();
+			LOG.debug( "Decoded entry: {} = {}", tag.get(), values );
+			return values;
+		} catch ( final Exception e ) {
+			LOG.warn( "Skipping invalid tag: {}", tag.get(), e );
+			return Collections.emptyList();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package com.furnaghan.exif.parser;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.furnaghan.exif.Deadline;
+
+// Stages updates to many files and commits them together, so a bulk job pays for each directory
+// sync once rather than once per file. No file is touched until commit, rewritten files then
+// replace their originals and exif segments staged in place are written over the old ones.
+// Anything left uncommitted is removed on close.
+public class UpdateBatch implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger( UpdateBatch.class );
+
+	private final Durability durability;
+	private final Deadline deadline;
+	private final boolean inPlace;
+	private final Map<Path, Staged> staged;
+
+	public UpdateBatch( final Durability durability ) {
+		this( durability, Deadline.NONE );
+	}
+
+	// Once the deadline passes no more files are staged and nothing is committed
+	public UpdateBatch( final Durability durability, final Deadline deadline ) {
+		this( durability, deadline, false );
+	}
+
+	// When in place, exif data which fits in the existing segment overwrites it rather than the
+	// image being rewritten, see ExifParser.updateInPlace
+	public UpdateBatch( final Durability durability, final Deadline deadline,
+			final boolean inPlace ) {
+		this.durability = durability;
+		this.deadline = deadline;
+		this.inPlace = inPlace;
+		this.staged = new LinkedHashMap<>();
+	}
+
+	public void update( final File file, final ExifParser.Updater updater ) throws IOException {
+		update( file, updater, 0 );
+	}
+
+	public void update( final File file, final ExifParser.Updater updater, final int padding )
+			throws IOException {
+		final Path target = file.toPath().toAbsolutePath();
+		checkArgument( !staged.containsKey( target ), "%s is already updated in this batch",
+				target );
+
+		deadline.check();
+		staged.put( target, ExifParser.stage( target, updater, padding, inPlace, deadline ) );
+	}
+
+	// Once started the commit runs to the end, the deadline is only checked before anything is
+	// written. An in place write which fails part way through leaves that segment corrupt.
+	public void commit() throws IOException {
+		deadline.check();
+		if ( durability != Durability.NONE ) {
+			for ( final Staged update : staged.values() ) {
+				if ( update.staging != null ) {
+					force( update.staging );
+				}
+			}
+		}
+
+		final Set<Path> directories = new LinkedHashSet<>();
+		for ( final Map.Entry<Path, Staged> entry : staged.entrySet() ) {
+			final Staged update = entry.getValue();
+			if ( update.staging == null ) {
+				write( entry.getKey(), update.segment, update.offset );
+			} else {
+				move( update.staging, entry.getKey() );
+				directories.add( entry.getKey().getParent() );
+			}
+		}
+		staged.clear();
+
+		if ( durability == Durability.FILE_AND_DIRECTORY ) {
+			for ( final Path directory : directories ) {
+				forceDirectory( directory );
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for ( final Staged update : staged.values() ) {
+			if ( update.staging != null ) {
+				Files.deleteIfExists( update.staging );
+			}
+		}
+		staged.clear();
+	}
+
+	private void write( final Path target, final byte[] segment, long position )
+			throws IOException {
+		LOG.info( "Updating {} byte exif segment in place at {}", segment.length, position );
+		try ( final FileChannel channel = FileChannel.open( target, StandardOpenOption.WRITE ) ) {
+			final ByteBuffer buffer = ByteBuffer.wrap( segment );
+			while ( buffer.hasRemaining() ) {
+				position += channel.write( buffer, position );
+			}
+			if ( durability != Durability.NONE ) {
+				channel.force( true );
+			}
+		}
+	}
+
+	private static void force( final Path path ) throws IOException {
+		try ( final FileChannel channel = FileChannel.open( path, StandardOpenOption.WRITE ) ) {
+			channel.force( true );
+		}
+	}
+
+	private static void move( final Path source, final Path target ) throws IOException {
+		try {
+			Files.move( source, target, StandardCopyOption.ATOMIC_MOVE );
+		} catch ( final AtomicMoveNotSupportedException e ) {
+			LOG.warn( "Atomic move not supported, replacing {}", target );
+			Files.move( source, target, StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	private static void forceDirectory( final Path directory ) {
+		// Not every platform allows a directory to be opened, there is nothing more we can do there
+		try ( final FileChannel channel = FileChannel.open( directory, StandardOpenOption.READ ) ) {
+			channel.force( true );
+		} catch ( final IOException e ) {
+			LOG.debug( "Unable to sync directory {}", directory, e );
+		}
+	}
+
+	// An update waiting to be committed, either an updated image to rename over the target or an
+	// exif segment to write over the existing one
+	static class Staged {
+		private final Path staging;
+		private final long offset;
+		private final byte[] segment;
+
+		private Staged( final Path staging, final long offset, final byte[] segment ) {
+			this.staging = staging;
+			this.offset = offset;
+			this.segment = segment;
+		}
+
+		static Staged rewritten( final Path staging ) {
+			return new Staged( staging, -1, null );
+		}
+
+		static Staged inPlace( final long offset, final byte[] segment ) {
+			return new Staged( null, offset, segment );
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.furnaghan.exif;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.furnaghan.exif.archive.ArchiveReader;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+public class ArchiveReaderTest {
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static byte[] resource( final String path ) throws IOException {
+		try ( final InputStream in = ArchiveReaderTest.class.getResourceAsStream( path ) ) {
+			return ByteStreams.toByteArray( in );
+		}
+	}
+
+	private static Map<String, byte[]> entries() throws IOException {
+		// @formatter:off
+		return ImmutableMap.of(
+				"shoot/sample.jpg", resource( "/images/sample.jpg" ),
+				"shoot/notes.txt", "not an image".getBytes( Charsets.UTF_8 ),
+				"shoot/" + Strings.repeat( "long", 40 ) + "/DIGGER.JPEG", resource( "/images/digger.jpg" )
+		);
+		// @formatter:on
+	}
+
+	private static Map<String, String> read( final File archive ) throws IOException {
+		final Map<String, String> makes = new LinkedHashMap<>();
+		ArchiveReader.read( archive, new ArchiveReader.EntryVisitor() {
+			@Override
+			public boolean visit( final String name, final ExifTags exif ) {
+				makes.put( name, exif.getMake().orNull() );
+				return true;
+			}
+		} );
+		return makes;
+	}
+
+	private static Map<String, String> expected() throws IOException {
+		final Map<String, String> makes = new LinkedHashMap<>();
+		makes.put( "shoot/sample.jpg", "Canon" );
+		makes.put( "shoot/" + Strings.repeat( "long", 40 ) + "/DIGGER.JPEG", "LG Electronics" );
+		return makes;
+	}
+
+	@Test
+	public void testReadZip() throws IOException {
+		final File archive = temporaryFolder.newFile( "shoot.zip" );
+		try ( final ZipOutputStream out = new ZipOutputStream( new FileOutputStream( archive ) ) ) {
+			for ( final Map.Entry<String, byte[]> entry : entries().entrySet() ) {
+				out.putNextEntry( new ZipEntry( entry.getKey() ) );
+				out.write( entry.getValue() );
+				out.closeEntry();
+			}
+		}
+
+		assertThat( read( archive ), is( expected() ) );
+	}
+
+	@Test
+	public void testReadTar() throws IOException {
+		final File archive = temporaryFolder.newFile( "shoot.tar" );
+		try ( final OutputStream out = new FileOutputStream( archive ) ) {
+			writeTar( out );
+		}
+
+		assertThat( read( archive ), is( expected() ) );
+	}
+
+	@Test
+	public void testReadGzippedTar() throws IOException {
+		final File archive = temporaryFolder.newFile( "shoot.tar.gz" );
+		try ( final OutputStream out = new GZIPOutputStream( new FileOutputStream( archive ) ) ) {
+			writeTar( out );
+		}
+
+		assertThat( read( archive ), is( expected() ) );
+	}
+
+	@Test(expected = IOException.class)
+	public void testOversizedLongNameIsRejected() throws IOException {
+		final File archive = temporaryFolder.newFile( "shoot.tar" );
+		try ( final OutputStream out = new FileOutputStream( archive ) ) {
+			// Claims a 1GB name but holds no data for it
+			out.write( tarHeader( "././@LongLink", 'L', 1024 * 1024 * 1024 ) );
+			out.write( new byte[1024] );
+		}
+
+		read( archive );
+	}
+
+	@Test
+	public void testMalformedPaxHeaderIsRejected() throws IOException {
+		// A length which leaves no room for the record, one which isn't a number, and one which
+		// runs past the end of the header data
+		final String[] headers = new String[] { "1 x", "x path=a\n", "12 path=a\n" };
+		for ( int i = 0; i < headers.length; i++ ) {
+			final String records = headers[i];
+			final File archive = temporaryFolder.newFile( "shoot" + i + ".tar" );
+			try ( final OutputStream out = new FileOutputStream( archive ) ) {
+				writeTarEntry( out, "PaxHeaders/a.jpg", 'x', records.getBytes( Charsets.UTF_8 ) );
+				out.write( new byte[1024] );
+			}
+
+			try {
+				read( archive );
+				fail( "Pax header should have been rejected: " + records );
+			} catch ( final IOException e ) {
+				// Expected
+			}
+		}
+	}
+
+	private static void writeTar( final OutputStream out ) throws IOException {
+		for ( final Map.Entry<String, byte[]> entry : entries().entrySet() ) {
+			final byte[] name = entry.getKey().getBytes( Charsets.UTF_8 );
+			if ( name.length > 100 ) {
+				// GNU long name, carried as the data of its own entry
+				writeTarEntry( out, "././@LongLink", 'L', name );
+			}
+			writeTarEntry( out, entry.getKey(), '0', entry.getValue() );
+		}
+		out.write( new byte[1024] );
+	}
+
+	private static void writeTarEntry( final OutputStream out, final String name, final char type,
+			final byte[] data ) throws IOException {
+		out.write( tarHeader( name, type, data.length ) );
+		out.write( data );
+		out.write( new byte[( 512 - data.length % 512 ) % 512] );
+	}
+
+	private static byte[] tarHeader( final String name, final char type, final long size ) {
+		final byte[] header = new byte[512];
+		final byte[] nameBytes = name.getBytes( Charsets.UTF_8 );
+		System.arraycopy( nameBytes, 0, header, 0, Math.min( nameBytes.length, 100 ) );
+		putAscii( header, 100, "0000644" );
+		putAscii( header, 124, String.format( "%011o", size ) );
+		putAscii( header, 148, "        " );
+		header[156] = (byte) type;
+		putAscii( header, 257, "ustar" );
+		putAscii( header, 263, "00" );
+
+		int checksum = 0;
+		for ( final byte b : header ) {
+			checksum += 0xff & b;
+		}
+		putAscii( header, 148, String.format( "%06o", checksum ) );
+		header[154] = 0;
+		return header;
+	}
+
+	private static void putAscii( final byte[] header, final int offset, final String value ) {
+		final byte[] bytes = value.getBytes( Charsets.US_ASCII );
+		System.arraycopy( bytes, 0, header, offset, bytes.length );
+	}
+
+	@Test
+	public void testReadStopsWhenVisitorReturnsFalse() throws IOException {
+		final File archive = temporaryFolder.newFile( "shoot.tar" );
+		try ( final OutputStream out = new FileOutputStream( archive ) ) {
+			writeTar( out );
+		}
+
+		final Map<String, ExifTags> visited = new LinkedHashMap<>();
+		ArchiveReader.read( archive, new ArchiveReader.EntryVisitor() {
+			@Override
+			public boolean visit( final String name, final ExifTags exif ) {
+				visited.put( name, exif );
+				return false;
+			}
+		} );
+		assertThat( visited.keySet().iterator().next(), is( "shoot/sample.jpg" ) );
+		assertThat( visited.size(), is( 1 ) );
+	}
+}
@@ -2,18 +2,46 @@ package com.furnaghan.exif;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.emptyIterable;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.instanceOf;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.hamcrest.Matcher;
 import org.hamcrest.Matchers;
@@ -22,13 +50,29 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.furnaghan.exif.io.CoalescingByteSource;
+import com.furnaghan.exif.io.FieldType;
+import com.furnaghan.exif.io.SeekableByteSource;
+import com.furnaghan.exif.jpeg.JpegParser;
+import com.furnaghan.exif.jpeg.Marker;
+import com.furnaghan.exif.parser.Durability;
 import com.furnaghan.exif.parser.ExifParser;
+import com.furnaghan.exif.parser.ExifReader;
+import com.furnaghan.exif.parser.ExifView;
+import com.furnaghan.exif.parser.ExifVisitor;
+import com.furnaghan.exif.parser.ParseBudget;
+import com.furnaghan.exif.parser.ParseBudgetExceededException;
+import com.furnaghan.exif.parser.TagValue;
+import com.furnaghan.exif.parser.UpdateBatch;
 import com.furnaghan.exif.tag.Exif;
 import com.furnaghan.exif.tag.GPSInfo;
 import com.furnaghan.exif.tag.Image;
 import com.furnaghan.exif.tag.Iop;
 import com.furnaghan.exif.tag.Thumbnail;
+import com.google.common.base.Strings;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.CountingInputStream;
 
 public class ExifParserTest {
 
@@ -110,6 +154,371 @@ public class ExifParserTest {
 		assertThat( tags.getModel().orNull(), is( "Canon PowerShot S40" ) );
 	}
 
+	@Test
+	public void testReadFileMatchesReadStream() throws IOException {
+		for ( final File image : new File[] { sampleImage, diggerImage } ) {
+			final ExifTags mapped = ExifParser.read( image );
+			final ExifTags streamed;
+			try ( final InputStream in = new FileInputStream( image ) ) {
+				streamed = ExifParser.read( in );
+			}
+
+			for ( final ImageFileDirectory ifd : ImageFileDirectory.values() ) {
+				assertThat( mapped.getDirectory( ifd ).keySet(),
+						is( streamed.getDirectory( ifd ).keySet() ) );
+			}
+			assertThat( mapped.getDate(), is( streamed.getDate() ) );
+			assertThat( mapped.getMake(), is( streamed.getMake() ) );
+			assertThat( mapped.getThumbnails().iterator().next(),
+					is( streamed.getThumbnails().iterator().next() ) );
+		}
+	}
+
+	@Test
+	public void testReadStreamStopsBeforeImageData() throws IOException {
+		try ( final CountingInputStream in = new CountingInputStream(
+				new FileInputStream( diggerImage ) ) ) {
+			final ExifTags tags = ExifParser.read( in );
+			assertThat( tags.getMake().orNull(), is( "LG Electronics" ) );
+
+			// The exif segment is within the first few KB of a multi-MB image
+			assertThat( in.getCount(), lessThan( 64 * 1024L ) );
+			assertThat( in.getCount(), lessThan( Files.size( diggerImage.toPath() ) ) );
+		}
+	}
+
+	@Test
+	public void testConcurrentReadsFromSharedChannel() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		try ( final FileChannel channel = FileChannel.open( diggerImage.toPath(),
+				StandardOpenOption.READ ) ) {
+			final Collection<Future<ExifTags>> results = new ArrayList<>();
+			for ( int i = 0; i < 64; i++ ) {
+				results.add( executor.submit( new Callable<ExifTags>() {
+					@Override
+					public ExifTags call() throws IOException {
+						return ExifParser.read( channel );
+					}
+				} ) );
+			}
+
+			for ( final Future<ExifTags> result : results ) {
+				final ExifTags tags = result.get();
+				assertThat( tags.getMake().orNull(), is( "LG Electronics" ) );
+				assertThat( tags.getModel().orNull(), is( "LG-H815" ) );
+				assertThat( tags.hasThumbnails(), is( true ) );
+			}
+
+			// Positional reads never move the channel
+			assertThat( channel.position(), is( 0L ) );
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testReadInMemoryImage() throws Exception {
+		final byte[] image = Files.readAllBytes( sampleImage.toPath() );
+
+		// Embed the image part way through a larger array
+		final byte[] bytes = new byte[image.length + 64];
+		System.arraycopy( image, 0, bytes, 32, image.length );
+		assertThat( ExifParser.read( bytes, 32, image.length ).getMake().orNull(), is( "Canon" ) );
+
+		final ByteBuffer buffer = ByteBuffer.allocateDirect( image.length );
+		buffer.put( image ).flip();
+
+		final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+		try {
+			final Collection<Future<ExifTags>> results = new ArrayList<>();
+			for ( int i = 0; i < 64; i++ ) {
+				results.add( executor.submit( new Callable<ExifTags>() {
+					@Override
+					public ExifTags call() throws IOException {
+						return ExifParser.read( buffer );
+					}
+				} ) );
+			}
+
+			for ( final Future<ExifTags> result : results ) {
+				final ExifTags tags = result.get();
+				assertThat( tags.getMake().orNull(), is( "Canon" ) );
+				assertThat( tags.getModel().orNull(), is( "Canon PowerShot S40" ) );
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// The shared buffer is left as it was
+		assertThat( buffer.position(), is( 0 ) );
+		assertThat( buffer.limit(), is( image.length ) );
+	}
+
+	@Test
+	public void testReadFromSeekableSourceCoalescesRequests() throws IOException {
+		try ( final FileChannel channel = FileChannel.open( diggerImage.toPath(),
+				StandardOpenOption.READ ) ) {
+			final CountingByteSource source = new CountingByteSource( channel );
+			final ExifTags tags = ExifParser.read( source );
+			assertThat( tags.getMake().orNull(), is( "LG Electronics" ) );
+			assertThat( tags.hasThumbnails(), is( true ) );
+
+			// Only the start of a multi-MB image is fetched, in a couple of requests
+			assertThat( source.requests, lessThanOrEqualTo( 2 ) );
+			assertThat( source.bytes, lessThan( 64 * 1024L ) );
+		}
+	}
+
+	@Test
+	public void testFilesTooLargeToMapAreRejected() throws IOException {
+		final File file = temporaryFolder.newFile();
+		try ( final FileChannel channel = FileChannel.open( file.toPath(),
+				StandardOpenOption.WRITE ) ) {
+			channel.write( ByteBuffer.wrap( Files.readAllBytes( diggerImage.toPath() ) ) );
+			// Sparse, so the image is followed by 2GB without taking up the space
+			channel.write( ByteBuffer.wrap( new byte[] { 0 } ), Integer.MAX_VALUE );
+		}
+
+		try {
+			ExifParser.read( file );
+			fail( "Read should have rejected the file" );
+		} catch ( final IOException e ) {
+			assertThat( e.getMessage(), containsString( "Unable to map" ) );
+		}
+
+		// Positional reads have no such limit
+		assertThat( ExifParser.read( file.toPath() ).getMake().orNull(),
+				is( "LG Electronics" ) );
+	}
+
+	@Test(timeout = 5000)
+	public void testCoalescingFailsOnStalledSource() throws IOException {
+		final CoalescingByteSource source = new CoalescingByteSource( new SeekableByteSource() {
+			@Override
+			public long size() {
+				return 1024;
+			}
+
+			@Override
+			public int read( final ByteBuffer dst, final long position ) {
+				return 0;
+			}
+		} );
+
+		try {
+			source.read( ByteBuffer.allocate( 16 ), 0 );
+			fail( "Read should have failed" );
+		} catch ( final IOException e ) {
+			assertThat( e.getMessage(), containsString( "No bytes read at position=0" ) );
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void testSegmentWalkFailsOnStalledSource() throws IOException {
+		// Every other request returns nothing, so the first fills the window and the next stalls
+		final byte[] image = Files.readAllBytes( diggerImage.toPath() );
+		final SeekableByteSource source = new SeekableByteSource() {
+			private int requests;
+
+			@Override
+			public long size() {
+				return image.length;
+			}
+
+			@Override
+			public int read( final ByteBuffer dst, final long position ) {
+				if ( requests++ % 2 == 1 ) {
+					return 0;
+				}
+				final int length = Math.min( 16, dst.remaining() );
+				dst.put( image, (int) position, length );
+				return length;
+			}
+		};
+
+		try {
+			JpegParser.read( source, EnumSet.of( Marker.APP1 ), new JpegParser.SegmentVisitor() {
+				@Override
+				public boolean visit( final Marker marker, final long offset,
+						final ByteBuffer segment ) {
+					return true;
+				}
+			} );
+			fail( "Read should have failed" );
+		} catch ( final IOException e ) {
+			assertThat( e.getMessage(), containsString( "No bytes read at position=" ) );
+		}
+	}
+
+	@Test
+	public void testReadFromSeekableSourceWithBudget() throws IOException {
+		try ( final FileChannel channel = FileChannel.open( diggerImage.toPath(),
+				StandardOpenOption.READ ) ) {
+			final CountingByteSource source = new CountingByteSource( channel );
+			try {
+				ExifParser.read( source, ParseBudget.DEFAULT.withMaxEntries( 1 ) );
+				fail( "Read should have gone over budget" );
+			} catch ( final ParseBudgetExceededException e ) {
+				// Expected
+			}
+
+			final Deadline deadline = Deadline.cancellable();
+			deadline.cancel();
+			try {
+				ExifParser.read( source, ParseBudget.DEFAULT.withDeadline( deadline ) );
+				fail( "Read should have been cancelled" );
+			} catch ( final InterruptedIOException e ) {
+				assertThat( e.getMessage(), is( "Cancelled" ) );
+			}
+		}
+	}
+
+	@Test
+	public void testForwardOnlyStreamReadMatchesBufferRead() throws IOException {
+		for ( final File image : new File[] { sampleImage, diggerImage } ) {
+			final ByteBuffer segment = exifSegment( image );
+			final ExifTags buffered = ExifReader.read( segment.duplicate() );
+			final ExifTags streamed = ExifReader.read(
+					new ByteArrayInputStream( segment.array(), segment.arrayOffset(),
+							segment.remaining() ) );
+
+			for ( final ImageFileDirectory ifd : ImageFileDirectory.values() ) {
+				assertThat( streamed.getDirectory( ifd ).keySet(),
+						is( buffered.getDirectory( ifd ).keySet() ) );
+			}
+			assertThat( streamed.getMake(), is( buffered.getMake() ) );
+			assertThat( streamed.getOrientation(), is( buffered.getOrientation() ) );
+			assertThat( streamed.getThumbnails().iterator().next(),
+					is( buffered.getThumbnails().iterator().next() ) );
+		}
+	}
+
+	@Test
+	public void testStreamReadFindsDataStoredBeforeIt() throws IOException {
+		final byte[] tiff = backwardTiff( 0 );
+		final byte[] segment = new byte[6 + tiff.length];
+		System.arraycopy( "Exif".getBytes(), 0, segment, 0, 4 );
+		System.arraycopy( tiff, 0, segment, 6, tiff.length );
+
+		final ExifTags exif = ExifReader.read( new ByteArrayInputStream( segment ) );
+		assertThat( exif.get( Exif.ISOSpeedRatings ), Matchers.<Object>contains( 200 ) );
+		assertThat( exif.getMake().orNull(), is( "abcdefg" ) );
+		assertThat( exif.getModel().orNull(), is( "abcdefg" ) );
+	}
+
+	@Test
+	public void testLazyReadMatchesEagerRead() throws IOException {
+		final ExifTags eager = ExifParser.read( diggerImage );
+		final ExifTags lazy = ExifParser.read( diggerImage, true );
+
+		assertThat( lazy.contains( Image.Software ), is( true ) );
+		assertThat( lazy.getDate(), is( eager.getDate() ) );
+		assertThat( lazy.get( GPSInfo.GPSLatitude ), is( eager.get( GPSInfo.GPSLatitude ) ) );
+		assertThat( lazy.hasThumbnails(), is( true ) );
+
+		for ( final ImageFileDirectory ifd : ImageFileDirectory.values() ) {
+			assertThat( lazy.getDirectory( ifd ).keySet(), is( eager.getDirectory( ifd ).keySet() ) );
+		}
+	}
+
+	@Test
+	public void testReadProjectionSkipsUnrequestedDirectories() throws IOException {
+		final ExifTags all = ExifParser.read( diggerImage );
+		final ExifTags tags = ExifParser.read( diggerImage,
+				ImmutableSet.of( Image.Orientation, Exif.PixelXDimension, Exif.PixelYDimension ) );
+
+		assertThat( tags.getOrientation(), is( all.getOrientation() ) );
+		assertThat( tags.get( Exif.PixelXDimension ), is( all.get( Exif.PixelXDimension ) ) );
+		assertThat( tags.get( Exif.PixelYDimension ), is( all.get( Exif.PixelYDimension ) ) );
+
+		assertThat( tags.getDirectory( ImageFileDirectory.Image ).size(), is( 1 ) );
+		assertThat( tags.getDirectory( ImageFileDirectory.Exif ).size(), is( 2 ) );
+		assertThat( tags.getDirectory( ImageFileDirectory.GPSInfo ).isEmpty(), is( true ) );
+		assertThat( tags.getDirectory( ImageFileDirectory.Iop ).isEmpty(), is( true ) );
+		assertThat( tags.getDirectory( ImageFileDirectory.Thumbnail ).isEmpty(), is( true ) );
+		assertThat( tags.hasThumbnails(), is( false ) );
+	}
+
+	@Test
+	public void testThumbnailHandlesShareTheSourceBuffer() throws IOException {
+		final byte[] image = Files.readAllBytes( diggerImage.toPath() );
+		final ExifTags tags = ExifParser.read( ByteBuffer.wrap( image ) );
+
+		final ExifThumbnail thumbnail = tags.getThumbnailHandles().iterator().next();
+		assertThat( thumbnail.getOffset() > 0, is( true ) );
+
+		// Nothing is copied until the bytes are asked for
+		final ByteBuffer buffer = thumbnail.getBuffer();
+		assertThat( buffer.remaining(), is( thumbnail.getLength() ) );
+		assertThat( buffer.get( buffer.position() ), is( (byte) 0xff ) );
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		thumbnail.writeTo( out );
+		assertThat( out.toByteArray(), is( tags.getThumbnails().iterator().next() ) );
+		assertThat( out.toByteArray().length, is( thumbnail.getLength() ) );
+	}
+
+	@Test
+	public void testThumbnailsOfMappedFilesAreCopiedUnlessLazy() throws IOException {
+		// Eager tags mustn't keep the file mapped
+		final ExifThumbnail eager = ExifParser.read( diggerImage ).getThumbnailHandles()
+				.iterator().next();
+		assertThat( eager.getBuffer().isDirect(), is( false ) );
+
+		final ExifThumbnail lazy = ExifParser.read( diggerImage, true ).getThumbnailHandles()
+				.iterator().next();
+		assertThat( lazy.getBuffer().isDirect(), is( true ) );
+		assertThat( lazy.getBytes(), is( eager.getBytes() ) );
+	}
+
+	@Test
+	public void testVisitorStopsOnceItHasWhatItNeeds() throws IOException {
+		final List<ImageFileDirectory> directories = new ArrayList<>();
+		final List<String> makes = new ArrayList<>();
+		ExifParser.read( diggerImage, new ExifVisitor() {
+			@Override
+			public boolean onDirectory( final ImageFileDirectory ifd, final long offset ) {
+				directories.add( ifd );
+				return true;
+			}
+
+			@Override
+			public boolean onTag( final ExifTagReference reference, final FieldType type,
+					final int count, final TagValue value ) throws IOException {
+				if ( reference.equals( Image.Make.get() ) ) {
+					makes.add( value.<String>decode().iterator().next() );
+					return false;
+				}
+				return true;
+			}
+
+			@Override
+			public boolean onThumbnail( final ExifThumbnail thumbnail ) {
+				throw new AssertionError( "Walk should have stopped" );
+			}
+		} );
+
+		assertThat( makes, Matchers.contains( "LG Electronics" ) );
+		assertThat( directories, Matchers.contains( ImageFileDirectory.Image ) );
+	}
+
+	@Test
+	public void testViewLookupsMatchParsedTags() throws IOException {
+		for ( final File image : new File[] { sampleImage, diggerImage } ) {
+			final ExifTags tags = ExifParser.read( image );
+			final ExifView view = ExifParser.view( image ).get();
+
+			for ( final ImageFileDirectory ifd : ImageFileDirectory.values() ) {
+				for ( final ExifTagReference tag : tags.getDirectory( ifd ).keySet() ) {
+					assertThat( view.contains( tag ), is( true ) );
+					assertThat( describe( view.get( tag ) ), is( describe( tags.get( tag ) ) ) );
+				}
+			}
+			assertThat( view.contains( GPSInfo.GPSDestBearing ), is( false ) );
+			assertThat( view.get( GPSInfo.GPSDestBearing ).isEmpty(), is( true ) );
+		}
+	}
+
 	@Test
 	public void testUpdateWritesToOriginalFile() throws IOException {
 		final String test = String.format( "test2_%s", new Date() );
@@ -158,6 +567,403 @@ public class ExifParserTest {
 		assertThat( newFileSize, not( originalFileSize ) );
 	}
 
+	@Test
+	public void testUpdatePreservesImageData() throws IOException {
+		final byte[] original = Files.readAllBytes( diggerImage.toPath() );
+
+		ExifParser.update( diggerImage, new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags.setDate( new Date() );
+			}
+		} );
+
+		// The image data makes up the tail of the file and must be copied untouched
+		final byte[] updated = Files.readAllBytes( diggerImage.toPath() );
+		final int length = original.length / 2;
+		assertThat( Arrays.copyOfRange( updated, updated.length - length, updated.length ),
+				is( Arrays.copyOfRange( original, original.length - length, original.length ) ) );
+	}
+
+	@Test
+	public void testUpdateWithPaddingIsMadeInPlace() throws IOException {
+		// The first update is too big to fit so rewrites the image, reserving space in the segment
+		ExifParser.update( diggerImage, new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags.setMake( Strings.repeat( "make", 256 ) );
+			}
+		}, 1024 );
+
+		final byte[] original = Files.readAllBytes( diggerImage.toPath() );
+
+		// A larger value now fits in the reserved space and only the segment is overwritten
+		final String make = Strings.repeat( "make", 320 );
+		ExifParser.updateInPlace( diggerImage, new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags.setMake( make );
+			}
+		} );
+
+		final byte[] updated = Files.readAllBytes( diggerImage.toPath() );
+		assertThat( updated.length, is( original.length ) );
+		assertThat( updated, not( original ) );
+		assertThat( ExifParser.read( diggerImage ).getMake().orNull(), is( make ) );
+
+		// Everything after the exif segment is untouched
+		final int length = original.length - 16 * 1024;
+		assertThat( Arrays.copyOfRange( updated, updated.length - length, updated.length ),
+				is( Arrays.copyOfRange( original, original.length - length, original.length ) ) );
+	}
+
+	@Test
+	public void testUpdateRewritesEvenWhenTheDataFits() throws IOException {
+		ExifParser.update( diggerImage, new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags.setMake( "make" );
+			}
+		}, 1024 );
+		final long length = Files.size( diggerImage.toPath() );
+
+		// Only an in place update keeps the reserved space, a rewrite drops it
+		ExifParser.update( diggerImage, new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags.setMake( "other" );
+			}
+		} );
+		assertThat( Files.size( diggerImage.toPath() ), lessThan( length ) );
+		assertThat( ExifParser.read( diggerImage ).getMake().orNull(), is( "other" ) );
+	}
+
+	@Test
+	public void testBatchUpdateStagesBesideTargets() throws IOException {
+		final File directory = sampleImage.getParentFile();
+		final byte[] original = Files.readAllBytes( sampleImage.toPath() );
+		final String make = Strings.repeat( "make", 256 );
+		final ExifParser.Updater updater = new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags.setMake( make );
+			}
+		};
+
+		// Nothing is replaced until the batch is committed, and an abandoned batch cleans up
+		try ( final UpdateBatch batch = new UpdateBatch( Durability.FILE_AND_DIRECTORY ) ) {
+			batch.update( sampleImage, updater );
+			assertThat( directory.list().length, is( 3 ) );
+		}
+		assertThat( directory.list().length, is( 2 ) );
+		assertThat( Files.readAllBytes( sampleImage.toPath() ), is( original ) );
+
+		try ( final UpdateBatch batch = new UpdateBatch( Durability.FILE_AND_DIRECTORY ) ) {
+			batch.update( sampleImage, updater );
+			batch.update( diggerImage, updater );
+			assertThat( directory.list().length, is( 4 ) );
+			batch.commit();
+		}
+		assertThat( directory.list().length, is( 2 ) );
+		assertThat( ExifParser.read( sampleImage ).getMake().orNull(), is( make ) );
+		assertThat( ExifParser.read( diggerImage ).getMake().orNull(), is( make ) );
+	}
+
+	@Test
+	public void testBatchUpdateInPlaceWaitsForCommit() throws IOException {
+		final File directory = diggerImage.getParentFile();
+		ExifParser.update( diggerImage, new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags.setMake( "make" );
+			}
+		}, 1024 );
+		final byte[] original = Files.readAllBytes( diggerImage.toPath() );
+		final ExifParser.Updater updater = new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags.setMake( "other" );
+			}
+		};
+
+		// The new segment fits in place, but the file is only written on commit
+		try ( final UpdateBatch batch = new UpdateBatch( Durability.FILE, Deadline.NONE,
+				true ) ) {
+			batch.update( diggerImage, updater );
+			assertThat( directory.list().length, is( 2 ) );
+			assertThat( Files.readAllBytes( diggerImage.toPath() ), is( original ) );
+		}
+		assertThat( Files.readAllBytes( diggerImage.toPath() ), is( original ) );
+
+		try ( final UpdateBatch batch = new UpdateBatch( Durability.FILE, Deadline.NONE,
+				true ) ) {
+			batch.update( diggerImage, updater );
+			batch.commit();
+		}
+		assertThat( Files.size( diggerImage.toPath() ), is( (long) original.length ) );
+		assertThat( ExifParser.read( diggerImage ).getMake().orNull(), is( "other" ) );
+	}
+
+	@Test
+	public void testReadTiffMatchesJpeg() throws IOException {
+		// The exif segment without its header is a TIFF file holding the same tags
+		final ByteBuffer segment = exifSegment( diggerImage );
+		final byte[] tiff = Arrays.copyOfRange( segment.array(), segment.arrayOffset() + 6,
+				segment.arrayOffset() + segment.limit() );
+		final File tiffImage = temporaryFolder.newFile( "digger.tif" );
+		Files.write( tiffImage.toPath(), tiff );
+
+		final ExifTags expected = ExifParser.read( diggerImage );
+		for ( final ExifTags actual : Arrays.asList( ExifParser.read( tiffImage ),
+				ExifParser.read( tiffImage.toPath() ),
+				ExifParser.read( new ByteArrayInputStream( tiff ) ) ) ) {
+			for ( final ImageFileDirectory ifd : ImageFileDirectory.values() ) {
+				assertThat( actual.getDirectory( ifd ).keySet(),
+						is( expected.getDirectory( ifd ).keySet() ) );
+			}
+			assertThat( actual.getMake(), is( expected.getMake() ) );
+		}
+		assertThat( ExifParser.view( tiffImage ).get().<String>getFirst( Image.Make ),
+				is( expected.getMake() ) );
+	}
+
+	@Test
+	public void testReadTiffStoredOutOfOrder() throws IOException {
+		final File tiffImage = temporaryFolder.newFile( "backward.tif" );
+		Files.write( tiffImage.toPath(), backwardTiff( 0 ) );
+
+		for ( final ExifTags exif : Arrays.asList( ExifParser.read( tiffImage ),
+				ExifParser.read( tiffImage.toPath() ),
+				ExifParser.read( new ByteArrayInputStream( backwardTiff( 0 ) ) ) ) ) {
+			assertThat( exif.get( Exif.ISOSpeedRatings ), Matchers.<Object>contains( 200 ) );
+			assertThat( exif.getMake().orNull(), is( "abcdefg" ) );
+			assertThat( exif.getModel().orNull(), is( "abcdefg" ) );
+		}
+
+		// Past the start of a stream, and across its end, what has been read is still reachable
+		for ( final int gap : new int[] { 64 * 1024 - 30, 128 * 1024, 4 * 1024 * 1024 } ) {
+			final byte[] tiff = backwardTiff( gap );
+			Files.write( tiffImage.toPath(), tiff );
+			for ( final ExifTags exif : Arrays.asList( ExifParser.read( tiffImage.toPath() ),
+					ExifParser.read( new ByteArrayInputStream( tiff ) ) ) ) {
+				assertThat( exif.get( Exif.ISOSpeedRatings ), Matchers.<Object>contains( 200 ) );
+				assertThat( exif.getMake().orNull(), is( "abcdefg" ) );
+			}
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testReadUnknownFormatIsRejected() throws IOException {
+		ExifParser.read( new ByteArrayInputStream( Strings.repeat( "not an image", 1000 )
+				.getBytes() ) );
+	}
+
+	@Test
+	public void testLenientReadRecordsProblems() throws IOException {
+		assertThat( ExifParser.readLenient( diggerImage ).getDiagnostics(), emptyIterable() );
+
+		// Give the first entry of the image IFD a field type which doesn't exist
+		final ByteBuffer segment = exifSegment( diggerImage );
+		final byte[] bytes = Arrays.copyOfRange( segment.array(), segment.arrayOffset(),
+				segment.arrayOffset() + segment.limit() );
+		final ByteBuffer tiff = ByteBuffer.wrap( bytes, 6, bytes.length - 6 ).slice();
+		tiff.order( tiff.getShort( 0 ) == 0x4949 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN );
+		final int entry = tiff.getInt( 4 ) + 2;
+		tiff.putShort( entry + 2, (short) 0x7777 );
+
+		final ExifTags exif = ExifReader.readLenient( ByteBuffer.wrap( bytes ) );
+		assertThat( exif.getDiagnostics().size(), is( 1 ) );
+		final Diagnostic diagnostic = exif.getDiagnostics().get( 0 );
+		assertThat( diagnostic.getCode(), is( Diagnostic.Code.UNKNOWN_FIELD_TYPE ) );
+		assertThat( diagnostic.getIfd(), is( ImageFileDirectory.Image ) );
+		assertThat( diagnostic.getTag(), is( 0xffff & tiff.getShort( entry ) ) );
+		assertThat( diagnostic.getOffset(), is( (long) entry ) );
+
+		// Everything else is still read
+		assertThat( exif.getDirectory( ImageFileDirectory.Exif ).keySet(),
+				is( ExifParser.read( diggerImage ).getDirectory( ImageFileDirectory.Exif )
+						.keySet() ) );
+
+		final ExifTags notAnImage = ExifParser.readLenient( ByteBuffer.wrap( new byte[64] ) );
+		assertThat( notAnImage.getDiagnostics().get( 0 ).getCode(),
+				is( Diagnostic.Code.UNSUPPORTED_FORMAT ) );
+	}
+
+	@Test(expected = InterruptedIOException.class)
+	public void testExpiredDeadlineStopsRead() throws IOException {
+		try ( final InputStream in = new FileInputStream( diggerImage ) ) {
+			ExifParser.read( in, ParseBudget.DEFAULT.withDeadline(
+					Deadline.after( 0, TimeUnit.MILLISECONDS ) ) );
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void testCancelWakesBlockedRead() throws Exception {
+		// The stream holds the start of a JPEG and then stalls until it is closed, like a socket
+		final CountDownLatch closed = new CountDownLatch( 1 );
+		final InputStream in = new SequenceInputStream( new ByteArrayInputStream( new byte[] {
+				(byte) 0xFF, (byte) 0xD8, (byte) 0xFF } ), new InputStream() {
+			@Override
+			public int read() throws IOException {
+				try {
+					closed.await();
+				} catch ( final InterruptedException e ) {
+					throw new InterruptedIOException();
+				}
+				throw new IOException( "Stream closed" );
+			}
+
+			@Override
+			public void close() {
+				closed.countDown();
+			}
+		} );
+
+		final Deadline deadline = Deadline.cancellable();
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final Future<ExifTags> read = executor.submit( new Callable<ExifTags>() {
+				@Override
+				public ExifTags call() throws IOException {
+					return ExifParser.read( in, ParseBudget.DEFAULT.withDeadline( deadline ) );
+				}
+			} );
+			Thread.sleep( 100 );
+			deadline.cancel();
+			try {
+				read.get();
+				fail( "Read should have been cancelled" );
+			} catch ( final ExecutionException e ) {
+				assertThat( e.getCause(), instanceOf( IOException.class ) );
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInterruptOnlyStopsReadsWithDeadline() throws IOException {
+		// Read into memory first, an interrupt closes any file channel it is used on
+		final byte[] image = Files.readAllBytes( diggerImage.toPath() );
+
+		Thread.currentThread().interrupt();
+		try {
+			// Without a deadline the read carries on as it always has
+			assertThat( ExifParser.read( ByteBuffer.wrap( image ) ).getMake().orNull(),
+					is( "LG Electronics" ) );
+			assertThat( ExifParser.read( new ByteArrayInputStream( image ) ).getMake().orNull(),
+					is( "LG Electronics" ) );
+
+			try {
+				ExifParser.read( new ByteArrayInputStream( image ), ParseBudget.DEFAULT
+						.withDeadline( Deadline.cancellable() ) );
+				fail( "Read should have been interrupted" );
+			} catch ( final InterruptedIOException e ) {
+				assertThat( e.getMessage(), is( "Interrupted" ) );
+			}
+		} finally {
+			Thread.interrupted();
+		}
+	}
+
+	@Test
+	public void testCancelledUpdateLeavesFileUntouched() throws IOException {
+		final File directory = diggerImage.getParentFile();
+		final byte[] original = Files.readAllBytes( diggerImage.toPath() );
+		final Deadline deadline = Deadline.cancellable();
+
+		// Too large to fit in place, so the update is cancelled part way through the rewrite
+		try {
+			ExifParser.update( diggerImage, new ExifParser.Updater() {
+				@Override
+				public ExifTags update( final ExifTags tags ) {
+					deadline.cancel();
+					return tags.setMake( Strings.repeat( "make", 256 ) );
+				}
+			}, 0, Durability.FILE_AND_DIRECTORY, deadline );
+			fail( "Update should have been cancelled" );
+		} catch ( final InterruptedIOException e ) {
+			assertThat( e.getMessage(), is( "Cancelled" ) );
+		}
+
+		assertThat( directory.list().length, is( 2 ) );
+		assertThat( Files.readAllBytes( diggerImage.toPath() ), is( original ) );
+	}
+
+	@Test
+	public void testCancelledInPlaceUpdateLeavesFileUntouched() throws IOException {
+		final File directory = diggerImage.getParentFile();
+		ExifParser.update( diggerImage, new ExifParser.Updater() {
+			@Override
+			public ExifTags update( final ExifTags tags ) {
+				return tags;
+			}
+		}, 1024 );
+		final byte[] original = Files.readAllBytes( diggerImage.toPath() );
+		final Deadline deadline = Deadline.cancellable();
+
+		// Fits in the padding, so would otherwise be written in place
+		try {
+			ExifParser.updateInPlace( diggerImage, new ExifParser.Updater() {
+				@Override
+				public ExifTags update( final ExifTags tags ) {
+					deadline.cancel();
+					return tags.setMake( "make" );
+				}
+			}, 0, Durability.FILE, deadline );
+			fail( "Update should have been cancelled" );
+		} catch ( final InterruptedIOException e ) {
+			assertThat( e.getMessage(), is( "Cancelled" ) );
+		}
+
+		assertThat( directory.list().length, is( 2 ) );
+		assertThat( Files.readAllBytes( diggerImage.toPath() ), is( original ) );
+	}
+
+	@Test
+	public void testLenientReadOfTruncatedImage() throws IOException {
+		final byte[] image = Files.readAllBytes( diggerImage.toPath() );
+		final ExifTags expected = ExifParser.read( diggerImage );
+
+		// Cut off part way through the segments before the image data
+		for ( final int length : new int[] { 100, 1000, 5000 } ) {
+			final ByteBuffer truncated = ByteBuffer.wrap( Arrays.copyOf( image, length ) );
+			assertThat( codes( ExifParser.readLenient( truncated ) ),
+					hasItem( Diagnostic.Code.TRUNCATED ) );
+			try {
+				ExifParser.read( truncated );
+				fail( "Strict read should have failed" );
+			} catch ( final IllegalStateException e ) {
+				// Expected
+			}
+		}
+
+		// Only the image data is missing, which is never read, so all of the tags are still there
+		final ExifTags exif = ExifParser.readLenient( ByteBuffer.wrap( Arrays.copyOf( image,
+				image.length - 20 ) ) );
+		assertThat( exif.getDirectory( ImageFileDirectory.Exif ).keySet(),
+				is( expected.getDirectory( ImageFileDirectory.Exif ).keySet() ) );
+
+		// Nor is anything after the end of the image, such as a trailer
+		final byte[] trailer = Arrays.copyOf( image, image.length + 100 );
+		assertThat( ExifParser.readLenient( ByteBuffer.wrap( trailer ) ).getDiagnostics(),
+				emptyIterable() );
+
+		// A segment length shorter than the length field itself
+		final byte[] invalid = new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, 0,
+				1, (byte) 0xFF, (byte) 0xD9 };
+		assertThat( codes( ExifParser.readLenient( ByteBuffer.wrap( invalid ) ) ),
+				hasItem( Diagnostic.Code.INVALID_SEGMENT ) );
+	}
+
+	private static List<Diagnostic.Code> codes( final ExifTags exif ) {
+		final List<Diagnostic.Code> codes = new ArrayList<>();
+		for ( final Diagnostic diagnostic : exif.getDiagnostics() ) {
+			codes.add( diagnostic.getCode() );
+		}
+		return codes;
+	}
+
 	@Test
 	public void testSet() throws IOException {
 		final String test = String.format( "test2_%s", new Date() );
@@ -196,6 +1002,80 @@ public class ExifParserTest {
 		ExifParser.write( sampleImage, tags );
 	}
 
+	private static Set<String> describe( final Collection<?> values ) {
+		final Set<String> descriptions = new HashSet<>();
+		for ( final Object value : values ) {
+			descriptions.add( value instanceof byte[] ? Arrays.toString( (byte[]) value )
+					: String.valueOf( value ) );
+		}
+		return descriptions;
+	}
+
+	// A TIFF with IFD0 after the Exif IFD it points to, and Make and Model sharing a value. All
+	// of it comes after gap bytes of image data.
+	private static byte[] backwardTiff( final int gap ) {
+		final ByteBuffer tiff = ByteBuffer.allocate( gap + 82 ).order( ByteOrder.LITTLE_ENDIAN );
+		tiff.put( (byte) 'I' ).put( (byte) 'I' ).putShort( (short) 0x2A ).putInt( gap + 40 );
+
+		// Exif IFD holding ISOSpeedRatings=200
+		tiff.putShort( gap + 8, (short) 1 );
+		tiff.putShort( gap + 10, (short) 0x8827 ).putShort( gap + 12, (short) 3 )
+				.putInt( gap + 14, 1 ).putShort( gap + 18, (short) 200 );
+		tiff.putInt( gap + 22, 0 );
+
+		tiff.position( gap + 26 );
+		tiff.put( "abcdefg".getBytes() ).put( (byte) 0 );
+
+		// IFD0
+		tiff.putShort( gap + 40, (short) 3 );
+		tiff.putShort( gap + 42, (short) 0x010F ).putShort( gap + 44, (short) 2 )
+				.putInt( gap + 46, 8 ).putInt( gap + 50, gap + 26 );
+		tiff.putShort( gap + 54, (short) 0x0110 ).putShort( gap + 56, (short) 2 )
+				.putInt( gap + 58, 8 ).putInt( gap + 62, gap + 26 );
+		tiff.putShort( gap + 66, (short) 0x8769 ).putShort( gap + 68, (short) 4 )
+				.putInt( gap + 70, 1 ).putInt( gap + 74, gap + 8 );
+		tiff.putInt( gap + 78, 0 );
+		return tiff.array();
+	}
+
+	private static ByteBuffer exifSegment( final File image ) throws IOException {
+		final List<ByteBuffer> segments = new ArrayList<>();
+		JpegParser.read( ByteBuffer.wrap( Files.readAllBytes( image.toPath() ) ),
+				EnumSet.of( Marker.APP1 ), new JpegParser.SegmentVisitor() {
+					@Override
+					public boolean visit( final Marker marker, final long offset,
+							final ByteBuffer segment ) {
+						segments.add( segment );
+						return false;
+					}
+				} );
+		return segments.get( 0 );
+	}
+
+	// Stands in for remote storage, counting each range request made
+	private static class CountingByteSource implements SeekableByteSource {
+		private final FileChannel channel;
+		private int requests;
+		private long bytes;
+
+		private CountingByteSource( final FileChannel channel ) {
+			this.channel = channel;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public int read( final ByteBuffer dst, final long position ) throws IOException {
+			final int read = channel.read( dst, position );
+			requests++;
+			bytes += read;
+			return read;
+		}
+	}
+
 	@SuppressWarnings("unchecked")
 	private static void assertDirectoryContains( final ExifTags exif, final ImageFileDirectory ifd,
 			final Supplier<ExifTagReference>... tags ) {
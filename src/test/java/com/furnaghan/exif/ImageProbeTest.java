@@ -0,0 +1,99 @@
+package com.furnaghan.exif;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.furnaghan.exif.jpeg.JpegParser;
+import com.furnaghan.exif.jpeg.Marker;
+import com.furnaghan.exif.parser.ImageProbe;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+
+public class ImageProbeTest {
+
+	private static ByteBuffer resource( final String path ) throws IOException {
+		try ( final InputStream in = ImageProbeTest.class.getResourceAsStream( path ) ) {
+			return ByteBuffer.wrap( ByteStreams.toByteArray( in ) );
+		}
+	}
+
+	@Test
+	public void testProbeReadsFrameHeader() throws IOException {
+		final ImageProbe probe = ImageProbe.probe( resource( "/images/sample.jpg" ) ).get();
+		assertThat( probe.getWidth(), is( 480 ) );
+		assertThat( probe.getHeight(), is( 360 ) );
+		assertThat( probe.getFrame(), is( Marker.SOF0 ) );
+		assertThat( probe.isBaseline(), is( true ) );
+		assertThat( probe.isProgressive(), is( false ) );
+		assertThat( probe.getPrecision(), is( 8 ) );
+		assertThat( probe.getComponents(), is( 3 ) );
+		assertThat( probe.getOrientation().get(), is( ExifTags.Orientation.NORMAL ) );
+	}
+
+	@Test
+	public void testProbeMatchesStreamProbe() throws IOException {
+		final ImageProbe probe = ImageProbe.probe( resource( "/images/digger.jpg" ) ).get();
+		final ImageProbe streamed;
+		try ( final InputStream in = ImageProbeTest.class.getResourceAsStream(
+				"/images/digger.jpg" ) ) {
+			streamed = ImageProbe.probe( in ).get();
+		}
+		assertThat( streamed.toString(), is( probe.toString() ) );
+	}
+
+	@Test
+	public void testProbeStopsAtFrameHeader() throws IOException {
+		final ByteBuffer image = resource( "/images/digger.jpg" );
+		final ImageProbe probe = ImageProbe.probe( image.duplicate() ).get();
+
+		// Find where the frame header ends
+		final List<Integer> ends = new ArrayList<>();
+		JpegParser.read( image.duplicate(), ImmutableSet.of( probe.getFrame() ),
+				new JpegParser.SegmentVisitor() {
+					@Override
+					public boolean visit( final Marker marker, final long offset,
+							final ByteBuffer segment ) {
+						ends.add( (int) offset + segment.remaining() );
+						return false;
+					}
+				} );
+
+		// Nothing after it is needed, so a copy cut off there probes the same
+		final byte[] header = Arrays.copyOf( image.array(), ends.get( 0 ) );
+		assertThat( ImageProbe.probe( ByteBuffer.wrap( header ) ).get().toString(),
+				is( probe.toString() ) );
+		assertThat( ImageProbe.probe( new ByteArrayInputStream( header ) ).get().toString(),
+				is( probe.toString() ) );
+	}
+
+	@Test
+	public void testTruncatedFrameHeaderIsRejected() throws IOException {
+		// A SOF0 segment holding only the precision and height
+		final byte[] image = new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xC0, 0, 5,
+				8, 0, 16, (byte) 0xFF, (byte) 0xD9 };
+
+		try {
+			ImageProbe.probe( ByteBuffer.wrap( image ) );
+			fail( "Probe should have rejected the frame header" );
+		} catch ( final IllegalStateException e ) {
+			// Expected
+		}
+		try {
+			ImageProbe.probe( new ByteArrayInputStream( image ) );
+			fail( "Probe should have rejected the frame header" );
+		} catch ( final IllegalStateException e ) {
+			// Expected
+		}
+	}
+}
@@ -1,16 +1,45 @@
 package com.furnaghan.exif;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.furnaghan.exif.io.ChannelWriter;
 import com.furnaghan.exif.io.NoopOutputStream;
 import com.furnaghan.exif.jpeg.JpegParser;
+import com.furnaghan.exif.jpeg.JpegSegmentIndex;
 import com.furnaghan.exif.jpeg.Marker;
+import com.furnaghan.exif.parser.ExifReader;
+import com.furnaghan.exif.parser.ImageProbe;
 
 public class JpegParserTest {
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	@Test
 	public void test() throws IOException {
 		final JpegParser parser = new JpegParser( new JpegParser.SegmentProcessor() {
@@ -26,4 +55,194 @@ public class JpegParserTest {
 			parser.process( in, new NoopOutputStream() );
 		}
 	}
+
+	@Test
+	public void testChannelProcessBatchesWrites() throws IOException {
+		final File input = temporaryFolder.newFile();
+		final File output = temporaryFolder.newFile();
+		try ( final InputStream in = JpegParserTest.class.getResourceAsStream(
+				"/images/sample.jpg" ) ) {
+			Files.copy( in, input.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+
+		final JpegParser parser = new JpegParser( new JpegParser.SegmentProcessor() {
+			@Override
+			public InputStream process( final Marker marker, final InputStream in ) {
+				return in;
+			}
+		} );
+
+		final ChannelWriter writer;
+		try ( final FileChannel in = FileChannel.open( input.toPath(), StandardOpenOption.READ );
+				final FileChannel out = FileChannel.open( output.toPath(),
+						StandardOpenOption.WRITE ) ) {
+			writer = new ChannelWriter( out );
+			parser.process( in, writer );
+		}
+
+		// Every segment is written in a single gathering write followed by the image data
+		final byte[] expected = Files.readAllBytes( input.toPath() );
+		assertThat( Files.readAllBytes( output.toPath() ), is( expected ) );
+		assertThat( writer.getBytes(), is( (long) expected.length ) );
+		assertThat( writer.getWrites(), lessThanOrEqualTo( 3L ) );
+	}
+
+	@Test
+	public void testSegmentIndexOpensSegmentsDirectly() throws IOException, ClassNotFoundException {
+		final File input = temporaryFolder.newFile();
+		try ( final InputStream in = JpegParserTest.class.getResourceAsStream(
+				"/images/digger.jpg" ) ) {
+			Files.copy( in, input.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+		final ByteBuffer image = ByteBuffer.wrap( Files.readAllBytes( input.toPath() ) );
+
+		final JpegSegmentIndex index;
+		try ( final FileChannel channel = FileChannel.open( input.toPath(),
+				StandardOpenOption.READ ) ) {
+			index = JpegSegmentIndex.build( channel );
+
+			// Reading through the channel matches slicing the whole image
+			for ( final JpegSegmentIndex.Segment segment : index.getSegments() ) {
+				assertThat( index.read( segment, channel ), is( index.slice( segment, image ) ) );
+			}
+		}
+
+		assertThat( index.toString(), is( JpegSegmentIndex.build( image ).toString() ) );
+		assertThat( index.getSegments( Marker.APP1 ).size(), is( 2 ) );
+		assertThat( image.getShort( (int) index.getImageDataOffset() ),
+				is( (short) Marker.SOS.getId() ) );
+
+		// The index can be cached and the exif data read straight from it later
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try ( final ObjectOutputStream out = new ObjectOutputStream( bytes ) ) {
+			out.writeObject( index );
+		}
+		final JpegSegmentIndex cached;
+		try ( final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream( bytes.toByteArray() ) ) ) {
+			cached = (JpegSegmentIndex) in.readObject();
+		}
+
+		final ByteBuffer exif = cached.slice( cached.getFirst( Marker.APP1 ).get(), image );
+		assertThat( ExifReader.read( exif ).getMake().orNull(), is( "LG Electronics" ) );
+	}
+
+	@Test
+	public void testEveryMarkerIsRecognised() throws IOException {
+		// A lossless frame after fill bytes and a standalone TEM marker, which has no length
+		final byte[] image = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xFF, 0x01,
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xC3, 0x00, 0x0B, 0x08, 0x00, 0x10,
+				0x00, 0x20, 0x01, 0x01, 0x11, 0x00, (byte) 0xFF, (byte) 0xD9 };
+
+		final List<Marker> markers = new ArrayList<>();
+		final JpegParser.SegmentVisitor visitor = new JpegParser.SegmentVisitor() {
+			@Override
+			public boolean visit( final Marker marker, final long offset,
+					final ByteBuffer segment ) {
+				markers.add( marker );
+				return true;
+			}
+		};
+		JpegParser.read( ByteBuffer.wrap( image ), EnumSet.allOf( Marker.class ), visitor );
+		JpegParser.read( new ByteArrayInputStream( image ), EnumSet.allOf( Marker.class ),
+				visitor );
+		assertThat( markers, contains( Marker.SOF3, Marker.SOF3 ) );
+
+		for ( final Marker marker : Marker.values() ) {
+			assertThat( Marker.fromId( marker.getId() ), is( marker ) );
+		}
+		assertThat( Marker.fromId( 0xFF02 ), is( nullValue() ) );
+	}
+
+	@Test
+	public void testUnprocessedSegmentsAreCopiedThrough() throws IOException {
+		final List<Marker> processed = new ArrayList<>();
+		final JpegParser parser = new JpegParser( new JpegParser.SegmentProcessor() {
+			@Override
+			public InputStream process( final Marker marker, final InputStream in ) {
+				// Drop the segment without reading any of it
+				processed.add( marker );
+				return new ByteArrayInputStream( new byte[0] );
+			}
+		}, EnumSet.noneOf( Marker.class ), EnumSet.of( Marker.APP1 ) );
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try ( final InputStream in = JpegParserTest.class.getResourceAsStream(
+				"/images/sample.jpg" ) ) {
+			parser.process( in, out );
+		}
+
+		final ByteBuffer image = ByteBuffer.wrap( out.toByteArray() );
+		assertThat( processed, contains( Marker.APP1 ) );
+		assertThat( JpegSegmentIndex.build( image ).getFirst( Marker.APP1 ).isPresent(),
+				is( false ) );
+		assertThat( ImageProbe.probe( image ).get().getWidth(), is( 480 ) );
+	}
+
+	// A stream which ends while looking for the next marker mustn't be read forever
+	@Test(timeout = 5000, expected = EOFException.class)
+	public void testStreamEndingBeforeMarkerFails() throws IOException {
+		final byte[] image = new byte[] { (byte) 0xFF, (byte) 0xD8, 0, 0, 0, 0 };
+		JpegParser.read( new ByteArrayInputStream( image ), EnumSet.of( Marker.APP1 ),
+				new JpegParser.SegmentVisitor() {
+					@Override
+					public boolean visit( final Marker marker, final long offset,
+							final ByteBuffer segment ) {
+						return true;
+					}
+				} );
+	}
+
+	// An APP1 segment whose length is too short to cover the length field itself
+	private static final byte[] SHORT_SEGMENT = new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF,
+			(byte) 0xE1, 0, 1, 0, 0, 0, 0, (byte) 0xFF, (byte) 0xD9 };
+
+	private static final JpegParser.SegmentVisitor IGNORE = new JpegParser.SegmentVisitor() {
+		@Override
+		public boolean visit( final Marker marker, final long offset, final ByteBuffer segment ) {
+			return true;
+		}
+	};
+
+	private FileChannel shortSegmentChannel() throws IOException {
+		final File input = temporaryFolder.newFile();
+		Files.write( input.toPath(), SHORT_SEGMENT );
+		return FileChannel.open( input.toPath(), StandardOpenOption.READ );
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testShortSegmentIsRejectedFromStream() throws IOException {
+		JpegParser.read( new ByteArrayInputStream( SHORT_SEGMENT ), EnumSet.of( Marker.APP1 ),
+				IGNORE );
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testShortSegmentIsRejectedFromChannel() throws IOException {
+		try ( final FileChannel channel = shortSegmentChannel() ) {
+			JpegParser.read( channel, EnumSet.of( Marker.APP1 ), IGNORE );
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testShortSegmentIsRejectedByIndex() {
+		JpegSegmentIndex.build( ByteBuffer.wrap( SHORT_SEGMENT ) );
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testShortSegmentIsRejectedByChannelIndex() throws IOException {
+		try ( final FileChannel channel = shortSegmentChannel() ) {
+			JpegSegmentIndex.build( channel );
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testShortSegmentIsRejectedWhenProcessing() throws IOException {
+		final JpegParser parser = new JpegParser( new JpegParser.SegmentProcessor() {
+			@Override
+			public InputStream process( final Marker marker, final InputStream in ) {
+				return in;
+			}
+		} );
+		parser.process( new ByteArrayInputStream( SHORT_SEGMENT ), new NoopOutputStream() );
+	}
 }
@@ -0,0 +1,226 @@
+package com.furnaghan.exif;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.furnaghan.exif.jpeg.JpegParser;
+import com.furnaghan.exif.jpeg.Marker;
+import com.furnaghan.exif.parser.ExifParser;
+import com.furnaghan.exif.parser.ExifReader;
+import com.furnaghan.exif.parser.ParseBudget;
+import com.furnaghan.exif.parser.ParseBudgetExceededException;
+import com.furnaghan.exif.tag.Image;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+
+public class ParseBudgetTest {
+
+	private static final int ASCII = 2;
+	private static final int LONG = 4;
+	private static final int UNDEFINED = 7;
+
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	@Test(timeout = 5000)
+	public void testDirectoryLoopIsOnlyReadOnce() throws IOException {
+		// A single IFD whose next IFD is itself
+		final ByteBuffer tiff = tiff( 64 );
+		directory( tiff, 8, 8, entry( Image.Make.get().getId(), ASCII, 4, 0x00636261 ) );
+
+		assertThat( ExifReader.readTiff( tiff.duplicate() ).getMake().get(), is( "abc" ) );
+		assertThat( ExifReader.readTiff( stream( tiff ) ).getMake().get(), is( "abc" ) );
+		assertThat( codes( ExifReader.readLenient( segment( tiff ) ) ),
+				hasItem( Diagnostic.Code.DIRECTORY_CYCLE ) );
+	}
+
+	@Test(expected = ParseBudgetExceededException.class)
+	public void testTooManyDirectories() throws IOException {
+		// A chain of empty IFDs, each pointing at the next
+		final ByteBuffer tiff = tiff( 8 + 10 * 6 + 4 );
+		for ( int i = 0; i < 10; i++ ) {
+			directory( tiff, 8 + i * 6, i < 9 ? 8 + ( i + 1 ) * 6 : 0 );
+		}
+
+		ExifReader.read( segment( tiff ), ParseBudget.DEFAULT.withMaxDirectories( 3 ) );
+	}
+
+	@Test(expected = ParseBudgetExceededException.class)
+	public void testTooManyEntriesWhenStreamed() throws IOException {
+		final int[][] entries = new int[100][];
+		for ( int i = 0; i < entries.length; i++ ) {
+			entries[i] = entry( 0x9000 + i, LONG, 1, i );
+		}
+		final ByteBuffer tiff = tiff( 8 + 2 + 12 * entries.length + 4 );
+		directory( tiff, 8, 0, entries );
+
+		ExifReader.read( stream( segment( tiff ) ), ParseBudget.DEFAULT.withMaxEntries( 10 ) );
+	}
+
+	@Test(expected = ParseBudgetExceededException.class)
+	public void testValueTooLarge() throws IOException {
+		final ByteBuffer tiff = tiff( 2048 );
+		directory( tiff, 8, 0, entry( Image.PrintImageMatching.get().getId(), UNDEFINED, 1000,
+				64 ) );
+
+		ExifReader.read( segment( tiff ), ParseBudget.DEFAULT.withMaxValueBytes( 100 ) );
+	}
+
+	@Test(expected = ParseBudgetExceededException.class)
+	public void testTooManyBytesOverall() throws IOException {
+		final ByteBuffer tiff = tiff( 2048 );
+		directory( tiff, 8, 0, entry( Image.PrintImageMatching.get().getId(), UNDEFINED, 600,
+				64 ), entry( Image.DNGPrivateData.get().getId(), UNDEFINED, 600, 700 ) );
+
+		ExifReader.read( segment( tiff ), ParseBudget.DEFAULT.withMaxBytes( 1000 ) );
+	}
+
+	// Going over budget isn't just another unreadable segment to pass over
+	@Test(expected = ParseBudgetExceededException.class)
+	public void testBudgetHoldsWhenReadingFile() throws IOException {
+		final File file = temporaryFolder.newFile();
+		Files.write( file.toPath(), image() );
+
+		ExifParser.read( file, ParseBudget.DEFAULT.withMaxEntries( 1 ) );
+	}
+
+	@Test(expected = ParseBudgetExceededException.class)
+	public void testBudgetHoldsWhenReadingStream() throws IOException {
+		ExifParser.read( new ByteArrayInputStream( image() ),
+				ParseBudget.DEFAULT.withMaxEntries( 1 ) );
+	}
+
+	@Test
+	public void testBudgetIsRecordedWhenReadingLeniently() throws IOException {
+		final File file = temporaryFolder.newFile();
+		Files.write( file.toPath(), image() );
+		final ParseBudget budget = ParseBudget.DEFAULT.withMaxEntries( 1 );
+
+		assertThat( codes( ExifParser.readLenient( file, budget ) ),
+				hasItem( Diagnostic.Code.BUDGET_EXCEEDED ) );
+		assertThat( codes( ExifParser.readLenient( ByteBuffer.wrap( image() ), budget ) ),
+				hasItem( Diagnostic.Code.BUDGET_EXCEEDED ) );
+		assertThat( codes( ExifReader.readLenient( ByteBuffer.wrap( exifSegment() ), budget ) ),
+				hasItem( Diagnostic.Code.BUDGET_EXCEEDED ) );
+	}
+
+	@Test
+	public void testHugeCountIsNeverAllocated() throws IOException {
+		// Four billion longs, far beyond the data and any array
+		final ByteBuffer tiff = tiff( 64 );
+		directory( tiff, 8, 0, entry( Image.StripOffsets.get().getId(), LONG, 0xFFFFFFFF, 32 ),
+				entry( Image.Make.get().getId(), ASCII, 4, 0x00636261 ) );
+
+		final ExifTags exif = ExifReader.readLenient( segment( tiff ) );
+		assertThat( exif.getMake().get(), is( "abc" ) );
+		assertThat( codes( exif ), hasItem( Diagnostic.Code.INVALID_VALUE_OFFSET ) );
+		assertThat( ExifReader.readTiff( tiff.duplicate() ).getMake().get(), is( "abc" ) );
+	}
+
+	@Test(timeout = 30000)
+	public void testMutatedSegmentsAlwaysFinish() throws IOException {
+		final byte[] original = exifSegment();
+		final Random random = new Random( 1 );
+		final ParseBudget budget = ParseBudget.DEFAULT.withMaxBytes( 1024 * 1024 );
+
+		for ( int i = 0; i < 2000; i++ ) {
+			final byte[] bytes = original.clone();
+			for ( int j = random.nextInt( 16 ) + 1; j > 0; j-- ) {
+				bytes[random.nextInt( bytes.length )] = (byte) random.nextInt( 256 );
+			}
+
+			// Lenient reads never throw, strict reads may but always finish
+			ExifReader.readLenient( ByteBuffer.wrap( bytes ) );
+			try {
+				ExifReader.read( new ByteArrayInputStream( bytes ), budget );
+			} catch ( final IOException | RuntimeException e ) {
+				continue;
+			}
+		}
+	}
+
+	private static List<Diagnostic.Code> codes( final ExifTags exif ) {
+		final List<Diagnostic.Code> codes = new ArrayList<>();
+		for ( final Diagnostic diagnostic : exif.getDiagnostics() ) {
+			codes.add( diagnostic.getCode() );
+		}
+		return codes;
+	}
+
+	private static ByteBuffer tiff( final int length ) {
+		final ByteBuffer tiff = ByteBuffer.allocate( length ).order( ByteOrder.LITTLE_ENDIAN );
+		tiff.put( (byte) 'I' ).put( (byte) 'I' ).putShort( (short) 0x2A ).putInt( 8 );
+		tiff.clear();
+		return tiff;
+	}
+
+	private static int[] entry( final int id, final int type, final int count, final int value ) {
+		return new int[] { id, type, count, value };
+	}
+
+	private static void directory( final ByteBuffer tiff, final int offset, final int next,
+			final int[]... entries ) {
+		tiff.putShort( offset, (short) entries.length );
+		for ( int i = 0; i < entries.length; i++ ) {
+			final int entry = offset + 2 + i * 12;
+			tiff.putShort( entry, (short) entries[i][0] );
+			tiff.putShort( entry + 2, (short) entries[i][1] );
+			tiff.putInt( entry + 4, entries[i][2] );
+			tiff.putInt( entry + 8, entries[i][3] );
+		}
+		tiff.putInt( offset + 2 + entries.length * 12, next );
+	}
+
+	// The TIFF data as an exif segment
+	private static ByteBuffer segment( final ByteBuffer tiff ) {
+		final ByteBuffer segment = ByteBuffer.allocate( 6 + tiff.remaining() );
+		segment.put( "Exif".getBytes() ).putShort( (short) 0 ).put( tiff.duplicate() );
+		segment.flip();
+		return segment;
+	}
+
+	private static InputStream stream( final ByteBuffer buffer ) {
+		final byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get( bytes );
+		return new ByteArrayInputStream( bytes );
+	}
+
+	private static byte[] image() throws IOException {
+		try ( final InputStream in = ParseBudgetTest.class.getResourceAsStream(
+				"/images/digger.jpg" ) ) {
+			return ByteStreams.toByteArray( in );
+		}
+	}
+
+	private static byte[] exifSegment() throws IOException {
+		final List<byte[]> segments = new ArrayList<>();
+		JpegParser.read( ByteBuffer.wrap( image() ), ImmutableSet.of( Marker.APP1 ),
+				new JpegParser.SegmentVisitor() {
+					@Override
+					public boolean visit( final Marker marker, final long offset,
+							final ByteBuffer segment ) {
+						final byte[] bytes = new byte[segment.remaining()];
+						segment.get( bytes );
+						segments.add( bytes );
+						return false;
+					}
+				} );
+		return segments.get( 0 );
+	}
+}